@@ -0,0 +1,36 @@
+package com.wsc.redisinaction.benchmark;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * һԵĲBenchmarkRunnerΪÿԴӣ
+ * ȵsetup()׼ݣȻ󷴸operation()teardown()
+ *
+ * @author wsc
+ *
+ */
+public abstract class Benchmark {
+    private final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setup(Jedis conn) {
+    }
+
+    /**
+     * ִһαԵĲ
+     *
+     * @param conn
+     * @param iteration 0ʼĵţɲͬļ
+     */
+    public abstract void operation(Jedis conn, long iteration);
+
+    public void teardown(Jedis conn) {
+    }
+}
@@ -0,0 +1,320 @@
+package com.wsc.redisinaction.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import redis.clients.jedis.Jedis;
+
+/**
+ * ܲȡChapter04.benchmarkUpdateTokenлڷļʱʽ
+ *
+ * ÿִԤȣֲִÿ̶ֳʱ䣻
+ * ĬforksJVMӽظУǰһԵJITGC״̬Ӱһԡ
+ * ֧ģʽ
+ *   THROUGHPUT   ÿֵ/룩ƽֵ99.9%
+ *   SAMPLE_TIME  ÿεõĺʱƽֵԼp50/p99/p999/ֵ
+ * вԶӱRedis15ݿ⣬ʾͬ
+ *
+ * ÷BenchmarkRunner [-f ] [-wi Ԥ] [-i ] [-t ÿֺ]
+ *                       [-m thrpt|sample|all] [-s Լ] []
+ *
+ * @author wsc
+ *
+ */
+public class BenchmarkRunner {
+
+    public enum Mode {
+        THROUGHPUT, SAMPLE_TIME
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length > 0 && "--fork".equals(args[0])) {
+            runFork(args);
+            return;
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner();
+        String suiteClass = HotPathBenchmarks.class.getName();
+        String filter = ".*";
+        List<Mode> modes = new ArrayList<Mode>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-f".equals(args[i])) {
+                runner.setForks(Integer.parseInt(args[++i]));
+            } else if ("-wi".equals(args[i])) {
+                runner.setWarmupIterations(Integer.parseInt(args[++i]));
+            } else if ("-i".equals(args[i])) {
+                runner.setMeasurementIterations(Integer.parseInt(args[++i]));
+            } else if ("-t".equals(args[i])) {
+                runner.setIterationMillis(Long.parseLong(args[++i]));
+            } else if ("-s".equals(args[i])) {
+                suiteClass = args[++i];
+            } else if ("-m".equals(args[i])) {
+                String mode = args[++i];
+                if (!"sample".equals(mode)) {
+                    modes.add(Mode.THROUGHPUT);
+                }
+                if (!"thrpt".equals(mode)) {
+                    modes.add(Mode.SAMPLE_TIME);
+                }
+            } else {
+                filter = args[i];
+            }
+        }
+        if (modes.size() == 0) {
+            modes.add(Mode.THROUGHPUT);
+            modes.add(Mode.SAMPLE_TIME);
+        }
+
+        BenchmarkSuite suite = (BenchmarkSuite)Class.forName(suiteClass).getDeclaredConstructor().newInstance();
+        Pattern pattern = Pattern.compile(filter);
+        List<Result> results = new ArrayList<Result>();
+        for (Benchmark benchmark : suite.benchmarks()) {
+            if (!pattern.matcher(benchmark.getName()).find()) {
+                continue;
+            }
+            for (Mode mode : modes) {
+                System.out.println("# Running " + benchmark.getName() + " " + mode);
+                results.add(runner.run(suiteClass, benchmark, mode));
+            }
+        }
+
+        System.out.println();
+        printResults(results);
+    }
+
+    private int forks = 2;
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationMillis = 1000;
+
+    public void setForks(int forks) {
+        this.forks = forks;
+    }
+
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    public void setMeasurementIterations(int measurementIterations) {
+        this.measurementIterations = measurementIterations;
+    }
+
+    public void setIterationMillis(long iterationMillis) {
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * һԡforksΪ0ʱڵǰУforksӽзֱвϲ
+     *
+     * @param suiteClass ĲԼӽͨҵ
+     * @param benchmark
+     * @param mode
+     * @return
+     */
+    public Result run(String suiteClass, Benchmark benchmark, Mode mode)
+        throws IOException, InterruptedException
+    {
+        if (forks <= 0) {
+            return runInProcess(benchmark, mode);
+        }
+
+        Result merged = new Result(benchmark.getName(), mode);
+        Gson gson = new Gson();
+        for (int fork = 0; fork < forks; fork++) {
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(BenchmarkRunner.class.getName());
+            command.add("--fork");
+            command.add(suiteClass);
+            command.add(benchmark.getName());
+            command.add(mode.name());
+            command.add(String.valueOf(warmupIterations));
+            command.add(String.valueOf(measurementIterations));
+            command.add(String.valueOf(iterationMillis));
+
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            Result result = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    result = gson.fromJson(line.substring(7), Result.class);
+                } else {
+                    System.out.println("  [fork " + (fork + 1) + "] " + line);
+                }
+            }
+            if (process.waitFor() != 0 || result == null) {
+                throw new RuntimeException("Benchmark fork failed: " + benchmark.getName());
+            }
+            merged.merge(result);
+        }
+        return merged;
+    }
+
+    private static void runFork(String[] args)
+        throws Exception
+    {
+        BenchmarkSuite suite = (BenchmarkSuite)Class.forName(args[1]).getDeclaredConstructor().newInstance();
+        Benchmark benchmark = null;
+        for (Benchmark candidate : suite.benchmarks()) {
+            if (candidate.getName().equals(args[2])) {
+                benchmark = candidate;
+            }
+        }
+        if (benchmark == null) {
+            throw new IllegalArgumentException("Unknown benchmark: " + args[2]);
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner();
+        runner.setWarmupIterations(Integer.parseInt(args[4]));
+        runner.setMeasurementIterations(Integer.parseInt(args[5]));
+        runner.setIterationMillis(Long.parseLong(args[6]));
+        Result result = runner.runInProcess(benchmark, Mode.valueOf(args[3]));
+        System.out.println("RESULT " + new Gson().toJson(result));
+    }
+
+    /**
+     * ڵǰһ
+     *
+     * @param benchmark
+     * @param mode
+     * @return
+     */
+    public Result runInProcess(Benchmark benchmark, Mode mode) {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+        Result result = new Result(benchmark.getName(), mode);
+        try {
+            benchmark.setup(conn);
+            long iteration = 0;
+            for (int i = 0; i < warmupIterations; i++) {
+                long start = System.nanoTime();
+                long end = start + iterationMillis * 1000000;
+                long ops = 0;
+                while (System.nanoTime() < end) {
+                    benchmark.operation(conn, iteration++);
+                    ops++;
+                }
+                System.out.println(String.format("Warmup %d: %.1f ops/s",
+                    i + 1, ops / ((System.nanoTime() - start) / 1000000000.0)));
+            }
+
+            for (int i = 0; i < measurementIterations; i++) {
+                long start = System.nanoTime();
+                long end = start + iterationMillis * 1000000;
+                long ops = 0;
+                if (mode == Mode.THROUGHPUT) {
+                    while (System.nanoTime() < end) {
+                        benchmark.operation(conn, iteration++);
+                        ops++;
+                    }
+                } else {
+                    long now = start;
+                    while (now < end) {
+                        benchmark.operation(conn, iteration++);
+                        long done = System.nanoTime();
+                        result.histogram.record(done - now);
+                        now = done;
+                        ops++;
+                    }
+                }
+                double score = ops / ((System.nanoTime() - start) / 1000000000.0);
+                result.addScore(score);
+                System.out.println(String.format("Iteration %d: %.1f ops/s", i + 1, score));
+            }
+        } finally {
+            benchmark.teardown(conn);
+            conn.disconnect();
+        }
+        return result;
+    }
+
+    public static void printResults(List<Result> results) {
+        System.out.println(String.format("%-40s %-7s %4s %14s %12s  %s",
+            "Benchmark", "Mode", "Cnt", "Score", "Error", "Units"));
+        for (Result result : results) {
+            if (result.mode == Mode.THROUGHPUT) {
+                System.out.println(String.format("%-40s %-7s %4d %14.1f  %10.1f  ops/s",
+                    result.name, "thrpt", result.scores.length, result.getMean(), result.getError()));
+            } else {
+                LatencyHistogram h = result.histogram;
+                System.out.println(String.format(
+                    "%-40s %-7s %4d %14.1f              us/op  (p50 %.1f, p99 %.1f, p999 %.1f, max %.1f)",
+                    result.name, "sample", h.getCount(), h.getMean() / 1000.0,
+                    h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                    h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+            }
+        }
+    }
+
+    /**
+     * һԵĽÿֲԼSAMPLE_TIMEģʽµĺʱֱͼ
+     */
+    public static class Result {
+        public final String name;
+        public final Mode mode;
+        private double[] scores = new double[0];
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        public Result(String name, Mode mode) {
+            this.name = name;
+            this.mode = mode;
+        }
+
+        private void addScore(double score) {
+            double[] next = new double[scores.length + 1];
+            System.arraycopy(scores, 0, next, 0, scores.length);
+            next[scores.length] = score;
+            scores = next;
+        }
+
+        private void merge(Result other) {
+            for (double score : other.scores) {
+                addScore(score);
+            }
+            histogram.add(other.histogram);
+        }
+
+        public double[] getScores() {
+            return scores.clone();
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        public double getMean() {
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            return scores.length == 0 ? 0 : sum / scores.length;
+        }
+
+        /**
+         * ƽֵ99.9%ʹֲ̬
+         */
+        public double getError() {
+            if (scores.length < 2) {
+                return Double.NaN;
+            }
+            double mean = getMean();
+            double sq = 0;
+            for (double score : scores) {
+                sq += (score - mean) * (score - mean);
+            }
+            double stddev = Math.sqrt(sq / (scores.length - 1));
+            return 3.29 * stddev / Math.sqrt(scores.length);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.wsc.redisinaction.benchmark;
+
+import java.util.List;
+
+/**
+ * һܲԡʵҪ޲ι캯BenchmarkRunnerӽͨ´
+ *
+ * @author wsc
+ *
+ */
+public interface BenchmarkSuite {
+    public List<Benchmark> benchmarks();
+}
@@ -0,0 +1,83 @@
+package com.wsc.redisinaction.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.wsc.redisinaction.chapter04.Chapter04;
+import com.wsc.redisinaction.chapter04.FixedPointMarket;
+import redis.clients.jedis.Jedis;
+
+/**
+ * ȽdoubleֱַʾʽĿԼϼܼӹ
+ *
+ * Уjava -cp bin:lib/* com.wsc.redisinaction.benchmark.BenchmarkRunner
+ *           -s com.wsc.redisinaction.benchmark.FundsBenchmarks []
+ *
+ * @author wsc
+ *
+ */
+public class FundsBenchmarks
+    implements BenchmarkSuite
+{
+    private static final int VALUES = 1024;
+
+    /** ֹJITѽôȥ */
+    static volatile long sink;
+
+    public List<Benchmark> benchmarks() {
+        final Chapter04 ch04 = new Chapter04();
+        final FixedPointMarket market = new FixedPointMarket();
+        final String[] decimals = new String[VALUES];
+        final String[] minors = new String[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            decimals[i] = (1000 + i) + "." + (i % 100);
+            minors[i] = String.valueOf(FixedPointMarket.toMinor(decimals[i]));
+        }
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new Benchmark("funds.parseDouble") {
+            public void operation(Jedis conn, long iteration) {
+                //Chapter04.purchaseItemͬĽͽض
+                sink = (int)Double.parseDouble(decimals[(int)(iteration % VALUES)]);
+            }
+        });
+
+        benchmarks.add(new Benchmark("funds.parseLong") {
+            public void operation(Jedis conn, long iteration) {
+                sink = Long.parseLong(minors[(int)(iteration % VALUES)]);
+            }
+        });
+
+        benchmarks.add(new Benchmark("funds.chapter04.listAndPurchaseItem") {
+            public void setup(Jedis conn) {
+                conn.hset("users:buyer", "funds", String.valueOf(Integer.MAX_VALUE));
+            }
+            public void operation(Jedis conn, long iteration) {
+                String itemId = "item" + iteration;
+                conn.sadd("inventory:seller", itemId);
+                ch04.listItem(conn, itemId, "seller", 1.99);
+                ch04.purchaseItem(conn, "buyer", itemId, "seller", 1.99);
+            }
+            public void teardown(Jedis conn) {
+                HotPathBenchmarks.clean(conn, "users:*", "inventory:*", "market:", "market:seller:*");
+            }
+        });
+
+        benchmarks.add(new Benchmark("funds.fixedPoint.listAndPurchaseItem") {
+            public void setup(Jedis conn) {
+                conn.hset("users:buyer", "funds_minor", String.valueOf(Long.MAX_VALUE / 2));
+            }
+            public void operation(Jedis conn, long iteration) {
+                String itemId = "item" + iteration;
+                conn.sadd("inventory:seller", itemId);
+                market.listItem(conn, itemId, "seller", 199);
+                market.purchaseItem(conn, "buyer", itemId, "seller", 199);
+            }
+            public void teardown(Jedis conn) {
+                HotPathBenchmarks.clean(conn, "users:*", "inventory:*", "market:minor:");
+            }
+        });
+
+        return benchmarks;
+    }
+}
@@ -0,0 +1,155 @@
+package com.wsc.redisinaction.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.wsc.redisinaction.chapter01.Chapter01;
+import com.wsc.redisinaction.chapter02.Chapter02;
+import com.wsc.redisinaction.chapter04.Chapter04;
+import redis.clients.jedis.Jedis;
+
+/**
+ * 124бƵõĺܲ
+ *
+ * Уjava -cp bin:lib/* com.wsc.redisinaction.benchmark.BenchmarkRunner []
+ *
+ * @author wsc
+ *
+ */
+public class HotPathBenchmarks
+    implements BenchmarkSuite
+{
+    /** ƺƷڹ̶СļѭʹãʹڲԹбȶ */
+    private static final int TOKENS = 1000;
+    private static final int ITEMS = 100;
+
+    public List<Benchmark> benchmarks() {
+        final Chapter01 ch01 = new Chapter01();
+        final Chapter02 ch02 = new Chapter02();
+        final Chapter04 ch04 = new Chapter04();
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new Benchmark("chapter01.postArticle") {
+            public void operation(Jedis conn, long iteration) {
+                ch01.postArticle(conn, "user:" + (iteration % TOKENS), "title", "http://www.google.com");
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "article:*", "voted:*", "score:", "time:");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter01.articleVote") {
+            private String article;
+            public void setup(Jedis conn) {
+                article = "article:" + ch01.postArticle(conn, "author", "title", "http://www.google.com");
+            }
+            public void operation(Jedis conn, long iteration) {
+                //ÿʹòͬûͶƱÿεöļƷ·
+                ch01.articleVote(conn, "user:" + iteration, article);
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "article:*", "voted:*", "score:", "time:");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter02.updateToken") {
+            public void operation(Jedis conn, long iteration) {
+                ch02.updateToken(conn, "token" + (iteration % TOKENS), "user", "item" + (iteration % ITEMS));
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "login:", "recent:", "viewed:*");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter02.checkToken") {
+            public void setup(Jedis conn) {
+                for (int i = 0; i < TOKENS; i++) {
+                    ch02.updateToken(conn, "token" + i, "user" + i, null);
+                }
+            }
+            public void operation(Jedis conn, long iteration) {
+                ch02.checkToken(conn, "token" + (iteration % TOKENS));
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "login:", "recent:", "viewed:*");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter02.addToCart") {
+            public void operation(Jedis conn, long iteration) {
+                ch02.addToCart(conn, "token" + (iteration % TOKENS), "item" + (iteration % ITEMS), 1);
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "cart:*");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter02.cacheRequest") {
+            private final Chapter02.Callback callback = new Chapter02.Callback() {
+                public String call(String request) {
+                    return "content for " + request;
+                }
+            };
+            public void setup(Jedis conn) {
+                for (int i = 0; i < ITEMS; i++) {
+                    ch02.updateToken(conn, "token", "user", "item" + i);
+                    ch02.cacheRequest(conn, "http://test.com/?item=item" + i, callback);
+                }
+            }
+            public void operation(Jedis conn, long iteration) {
+                //л棬canCacheһGETĿ
+                ch02.cacheRequest(conn, "http://test.com/?item=item" + (iteration % ITEMS), callback);
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "login:", "recent:", "viewed:*", "cache:*");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter04.updateToken") {
+            public void operation(Jedis conn, long iteration) {
+                ch04.updateToken(conn, "token" + (iteration % TOKENS), "user", "item" + (iteration % ITEMS));
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "login:", "recent:", "viewed:*");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter04.updateTokenPipeline") {
+            public void operation(Jedis conn, long iteration) {
+                ch04.updateTokenPipeline(conn, "token" + (iteration % TOKENS), "user", "item" + (iteration % ITEMS));
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "login:", "recent:", "viewed:*");
+            }
+        });
+
+        benchmarks.add(new Benchmark("chapter04.listAndPurchaseItem") {
+            public void setup(Jedis conn) {
+                conn.hset("users:seller", "funds", "0");
+                conn.hset("users:buyer", "funds", String.valueOf(Integer.MAX_VALUE));
+            }
+            public void operation(Jedis conn, long iteration) {
+                //ϼһƷ漴£ִһWATCH/MULTI/EXEC
+                String itemId = "item" + iteration;
+                conn.sadd("inventory:seller", itemId);
+                ch04.listItem(conn, itemId, "seller", 1);
+                ch04.purchaseItem(conn, "buyer", itemId, "seller", 1);
+            }
+            public void teardown(Jedis conn) {
+                clean(conn, "users:*", "inventory:*", "market:", "market:seller:*");
+            }
+        });
+
+        return benchmarks;
+    }
+
+    static void clean(Jedis conn, String... patterns) {
+        for (String pattern : patterns) {
+            Set<String> keys = conn.keys(pattern);
+            if (keys.size() > 0) {
+                conn.del(keys.toArray(new String[keys.size()]));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.wsc.redisinaction.benchmark;
+
+/**
+ * -ԷͰӳֱͼHdrHistogramķͰʽͬ
+ * ÿ2䱻ȷΪSUB_BUCKETS / 2ͰֵԲԼ1.6%¼
+ * ڴռù̶¼һֻҪλ㡣
+ * ̰߳ȫģÿ߳ʹԼֱͼͨadd()ϲ
+ *
+ * @author wsc
+ *
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long max;
+    private double sum;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * ٷλ0-100ϵֵͰϽ
+     *
+     * @param percentile
+     * @return
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        int exponent = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return exponent * SUB_BUCKETS + (int)(value >>> exponent);
+    }
+
+    private static long highestValue(int index) {
+        int exponent = index / SUB_BUCKETS;
+        long sub = index % SUB_BUCKETS;
+        return ((sub + 1) << exponent) - 1;
+    }
+}
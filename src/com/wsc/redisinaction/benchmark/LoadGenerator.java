@@ -0,0 +1,548 @@
+package com.wsc.redisinaction.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.wsc.redisinaction.chapter04.Chapter04;
+import com.wsc.redisinaction.chapter04.ScriptedMarket;
+import redis.clients.jedis.Jedis;
+
+/**
+ * ̸߳۲4µĺڲµı֡
+ *
+ * ÿ߳ʹԼӣտķʽļƻʼʱĿʾ
+ * ӳٴӼƻʼʱ𣬶Ǵʱ
+ * ˱ʱŶӵʱҲᱻӳ٣ջеġЭ©⡣
+ * ĿΪ0ʱ˻Ϊջԣÿ߳̾ܿط
+ *
+ * ļZipfֲѡȡͨskewȵļг̶ȡ
+ * ӳֱͼĸٷλԼWATCHֹĴдJSONļԱȡ
+ *
+ * ÷LoadGenerator [-t ߳] [-r ÿ] [-d ] [-w Ԥ] [-k ]
+ *                     [-s skew] [-o ļ] []
+ *
+ * @author wsc
+ *
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args)
+        throws IOException, InterruptedException
+    {
+        LoadGenerator generator = new LoadGenerator();
+        String filter = ".*";
+        File output = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i])) {
+                generator.setThreads(Integer.parseInt(args[++i]));
+            } else if ("-r".equals(args[i])) {
+                generator.setRate(Double.parseDouble(args[++i]));
+            } else if ("-d".equals(args[i])) {
+                generator.setDurationMillis((long)(Double.parseDouble(args[++i]) * 1000));
+            } else if ("-w".equals(args[i])) {
+                generator.setWarmupMillis((long)(Double.parseDouble(args[++i]) * 1000));
+            } else if ("-k".equals(args[i])) {
+                generator.setKeys(Integer.parseInt(args[++i]));
+            } else if ("-s".equals(args[i])) {
+                generator.setSkew(Double.parseDouble(args[++i]));
+            } else if ("-o".equals(args[i])) {
+                output = new File(args[++i]);
+            } else {
+                filter = args[i];
+            }
+        }
+
+        Pattern pattern = Pattern.compile(filter);
+        List<LoadResult> results = new ArrayList<LoadResult>();
+        for (Scenario scenario : chapter04Scenarios()) {
+            if (pattern.matcher(scenario.getName()).find()) {
+                System.out.println("# Running " + scenario.getName());
+                results.add(generator.run(scenario));
+            }
+        }
+
+        System.out.println();
+        printResults(results);
+        if (output != null) {
+            writeResults(results, output);
+            System.out.println("Results written to " + output);
+        }
+    }
+
+    /**
+     * һexecute()ᱻ̲߳ãÿ̴߳Լ
+     */
+    public static abstract class Scenario {
+        private final String name;
+
+        protected Scenario(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * й֮߳ǰһ
+         *
+         * @param conn
+         * @param keys execute()յkeyλ[0, keys)֮
+         */
+        public void setup(Jedis conn, int keys) {
+        }
+
+        /**
+         * ִһβ
+         *
+         * @param conn
+         * @param key Zipfֲѡȡļ
+         * @return ǷɹƷѾʱfalse
+         */
+        public abstract boolean execute(Jedis conn, int key);
+
+        /**
+         * ĿǰΪֹWATCHֹۼƴʹWATCHĳ0
+         */
+        public long getAborts() {
+            return 0;
+        }
+
+        public void teardown(Jedis conn) {
+        }
+    }
+
+    private int threads = 8;
+    private double rate = 2000;
+    private long durationMillis = 10000;
+    private long warmupMillis = 2000;
+    private int keys = 1000;
+    private double skew = 0.99;
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param rate ̺߳ϼƵĿʣ/룩0ʾջ
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @param warmupMillis ʼʱڵ󲻼
+     */
+    public void setWarmupMillis(long warmupMillis) {
+        this.warmupMillis = warmupMillis;
+    }
+
+    public void setKeys(int keys) {
+        this.keys = keys;
+    }
+
+    public void setSkew(double skew) {
+        this.skew = skew;
+    }
+
+    /**
+     * һԤȽ֮ͳƽ
+     *
+     * @param scenario
+     * @return
+     * @throws InterruptedException
+     */
+    public LoadResult run(Scenario scenario)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+        scenario.setup(conn, keys);
+
+        ZipfGenerator zipf = new ZipfGenerator(keys, skew);
+        long start = System.nanoTime() + 10000000;
+        long measureStart = start + warmupMillis * 1000000;
+        long end = measureStart + durationMillis * 1000000;
+        long interval = rate > 0 ? (long)(1000000000.0 * threads / rate) : 0;
+
+        WorkerThread[] workers = new WorkerThread[threads];
+        for (int i = 0; i < threads; i++) {
+            //̵߳ĵһʹϼƵȷֲ
+            long first = start + (interval * i) / threads;
+            workers[i] = new WorkerThread(scenario, zipf, first, interval, measureStart, end);
+            workers[i].start();
+        }
+
+        sleepUntil(measureStart);
+        long abortsBefore = scenario.getAborts();
+        for (WorkerThread worker : workers) {
+            worker.join();
+        }
+        long aborts = scenario.getAborts() - abortsBefore;
+
+        LoadResult result = new LoadResult(scenario.getName(), threads, rate, skew, keys, durationMillis);
+        for (WorkerThread worker : workers) {
+            result.add(worker.histogram, worker.succeeded, worker.failed, worker.errors);
+        }
+        result.setAborts(aborts);
+
+        scenario.teardown(conn);
+        conn.disconnect();
+        return result;
+    }
+
+    private static void sleepUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static class WorkerThread
+        extends Thread
+    {
+        private final Scenario scenario;
+        private final ZipfGenerator zipf;
+        private final long first;
+        private final long interval;
+        private final long measureStart;
+        private final long end;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private long succeeded;
+        private long failed;
+        private long errors;
+
+        private WorkerThread(
+            Scenario scenario, ZipfGenerator zipf, long first, long interval, long measureStart, long end)
+        {
+            this.scenario = scenario;
+            this.zipf = zipf;
+            this.first = first;
+            this.interval = interval;
+            this.measureStart = measureStart;
+            this.end = end;
+        }
+
+        public void run() {
+            Jedis conn = new Jedis("localhost");
+            conn.select(15);
+            Random random = new Random();
+            long next = first;
+
+            while (true) {
+                long intended;
+                if (interval > 0) {
+                    //ļƻʱһʱ޹أʱһ
+                    intended = next;
+                    next += interval;
+                    if (intended >= end) {
+                        break;
+                    }
+                    sleepUntil(intended);
+                } else {
+                    intended = System.nanoTime();
+                    if (intended >= end) {
+                        break;
+                    }
+                }
+
+                boolean ok;
+                boolean error = false;
+                try {
+                    ok = scenario.execute(conn, zipf.next(random));
+                } catch (RuntimeException e) {
+                    ok = false;
+                    error = true;
+                    //ӿܴڲȷ״̬һ
+                    conn.disconnect();
+                    conn = new Jedis("localhost");
+                    conn.select(15);
+                }
+                long done = System.nanoTime();
+
+                if (intended >= measureStart) {
+                    histogram.record(done - intended);
+                    if (error) {
+                        errors++;
+                    } else if (ok) {
+                        succeeded++;
+                    } else {
+                        failed++;
+                    }
+                }
+            }
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * һеͳƽӳ΢Ϊλ
+     */
+    public static class LoadResult {
+        private final String name;
+        private final int threads;
+        private final double targetRate;
+        private final double skew;
+        private final int keys;
+        private final double seconds;
+        private long succeeded;
+        private long failed;
+        private long errors;
+        private long aborts;
+        private double throughput;
+        private double abortsPerSuccess;
+        private double commandsPerSuccess;
+        private double meanMicros;
+        private double p50Micros;
+        private double p90Micros;
+        private double p99Micros;
+        private double p999Micros;
+        private double maxMicros;
+        private final transient LatencyHistogram histogram = new LatencyHistogram();
+
+        public LoadResult(String name, int threads, double targetRate, double skew, int keys, long durationMillis) {
+            this.name = name;
+            this.threads = threads;
+            this.targetRate = targetRate;
+            this.skew = skew;
+            this.keys = keys;
+            this.seconds = durationMillis / 1000.0;
+        }
+
+        private void add(LatencyHistogram other, long succeeded, long failed, long errors) {
+            histogram.add(other);
+            this.succeeded += succeeded;
+            this.failed += failed;
+            this.errors += errors;
+            throughput = (this.succeeded + this.failed) / seconds;
+            meanMicros = histogram.getMean() / 1000.0;
+            p50Micros = histogram.getValueAtPercentile(50) / 1000.0;
+            p90Micros = histogram.getValueAtPercentile(90) / 1000.0;
+            p99Micros = histogram.getValueAtPercentile(99) / 1000.0;
+            p999Micros = histogram.getValueAtPercentile(99.9) / 1000.0;
+            maxMicros = histogram.getMax() / 1000.0;
+            setAborts(aborts);
+        }
+
+        private void setAborts(long aborts) {
+            this.aborts = aborts;
+            abortsPerSuccess = succeeded == 0 ? 0 : (double)aborts / succeeded;
+        }
+
+        /**
+         * @param commands ڼ䣨Ԥȣ
+         * @param successes ͬһڼɹĲ
+         */
+        public void setCommands(long commands, long successes) {
+            commandsPerSuccess = successes == 0 ? 0 : (double)commands / successes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public double getSkew() {
+            return skew;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getAborts() {
+            return aborts;
+        }
+
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public double getCommandsPerSuccess() {
+            return commandsPerSuccess;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getP999Micros() {
+            return p999Micros;
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+
+    public static void printResults(List<LoadResult> results) {
+        System.out.println(String.format("%-28s %4s %9s %10s %8s %8s %8s %9s %9s %9s %9s",
+            "Scenario", "Thr", "Skew", "ops/s", "ok", "failed", "errors", "aborts", "p50 us", "p99 us", "p999 us"));
+        for (LoadResult r : results) {
+            System.out.println(String.format("%-28s %4d %9.2f %10.1f %8d %8d %8d %9d %9.1f %9.1f %9.1f",
+                r.name, r.threads, r.skew, r.throughput, r.succeeded, r.failed, r.errors, r.aborts,
+                r.p50Micros, r.p99Micros, r.p999Micros));
+        }
+    }
+
+    public static void writeResults(List<LoadResult> results, File file)
+        throws IOException
+    {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Writer writer = new FileWriter(file);
+        try {
+            gson.toJson(results, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * 4µupdateTokenlistItempurchaseItemϼܺ͹ֱʹWATCHLuaűʵ
+     *
+     * @return
+     */
+    public static List<Scenario> chapter04Scenarios() {
+        final Chapter04 ch04 = new Chapter04();
+        final ScriptedMarket scripted = new ScriptedMarket();
+        final AtomicLong sequence = new AtomicLong();
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+
+        scenarios.add(new Scenario("chapter04.updateToken") {
+            public boolean execute(Jedis conn, int key) {
+                ch04.updateToken(conn, "token" + key, "user" + key, "item" + (sequence.incrementAndGet() % 100));
+                return true;
+            }
+            public void teardown(Jedis conn) {
+                HotPathBenchmarks.clean(conn, "login:", "recent:", "viewed:*");
+            }
+        });
+
+        scenarios.add(new ListScenario("chapter04.listItem", sequence) {
+            protected boolean list(Jedis conn, String itemId, String sellerId) {
+                return ch04.listItem(conn, itemId, sellerId, 10);
+            }
+            public long getAborts() {
+                return ch04.getWatchAborts();
+            }
+        });
+
+        scenarios.add(new PurchaseScenario("chapter04.purchaseItem", sequence) {
+            protected boolean purchase(Jedis conn, String buyerId, String itemId) {
+                return ch04.purchaseItem(conn, buyerId, itemId, "seller", 10);
+            }
+            public long getAborts() {
+                return ch04.getWatchAborts();
+            }
+        });
+
+        scenarios.add(new ListScenario("chapter04.scripted.listItem", sequence) {
+            protected boolean list(Jedis conn, String itemId, String sellerId) {
+                return scripted.listItem(conn, itemId, sellerId, 10);
+            }
+        });
+
+        scenarios.add(new PurchaseScenario("chapter04.scripted.purchaseItem", sequence) {
+            protected boolean purchase(Jedis conn, String buyerId, String itemId) {
+                return scripted.purchaseItem(conn, buyerId, itemId, "seller", 10);
+            }
+        });
+
+        return scenarios;
+    }
+
+    /**
+     * ϼܳӦңÿϼһƷ
+     */
+    private static abstract class ListScenario
+        extends Scenario
+    {
+        private final AtomicLong sequence;
+
+        private ListScenario(String name, AtomicLong sequence) {
+            super(name);
+            this.sequence = sequence;
+        }
+
+        protected abstract boolean list(Jedis conn, String itemId, String sellerId);
+
+        public boolean execute(Jedis conn, int key) {
+            String seller = "seller" + key;
+            String itemId = "item" + sequence.incrementAndGet();
+            conn.sadd("inventory:" + seller, itemId);
+            return list(conn, itemId, seller);
+        }
+
+        public void teardown(Jedis conn) {
+            HotPathBenchmarks.clean(conn, "inventory:*", "market:", "market:seller:*");
+        }
+    }
+
+    /**
+     * 򳡾ӦгϵƷҹɹϼܣʹгȶ
+     */
+    static abstract class PurchaseScenario
+        extends Scenario
+    {
+        private final AtomicLong sequence;
+
+        PurchaseScenario(String name, AtomicLong sequence) {
+            super(name);
+            this.sequence = sequence;
+        }
+
+        protected abstract boolean purchase(Jedis conn, String buyerId, String itemId);
+
+        public void setup(Jedis conn, int keys) {
+            conn.hset("users:seller", "funds", "0");
+            for (int i = 0; i < 100; i++) {
+                conn.hset("users:buyer" + i, "funds", "1000000000");
+            }
+            for (int i = 0; i < keys; i++) {
+                conn.zadd("market:", 10, "item" + i + ".seller");
+            }
+        }
+
+        public boolean execute(Jedis conn, int key) {
+            String buyer = "buyer" + (sequence.incrementAndGet() % 100);
+            if (!purchase(conn, buyer, "item" + key)) {
+                return false;
+            }
+            conn.zadd("market:", 10, "item" + key + ".seller");
+            return true;
+        }
+
+        public void teardown(Jedis conn) {
+            HotPathBenchmarks.clean(conn, "users:*", "inventory:*", "market:");
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.wsc.redisinaction.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wsc.redisinaction.chapter04.Chapter04;
+import com.wsc.redisinaction.chapter04.ScriptedMarket;
+import com.wsc.redisinaction.chapter06.Chapter06;
+import com.wsc.redisinaction.util.RedisInfo;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+/**
+ * ͬĹرȽֲƷʽ
+ *   watch   Chapter04.purchaseItemWATCH/MULTI/EXECͻʱ˱
+ *   lock    Chapter06.acquireLockWithTimeoutסƷٲWATCHضȡд
+ *   script  ScriptedMarket.purchaseItemһLuaűɼ޸
+ * ÿ߳skewϷֱַʽp50/p99/p999ӳ١
+ * ֹwatchǱֹlockǻȡʱԼÿγɹ
+ * ɹϼܵһZADDַʽһ
+ *
+ * ÷PurchaseStrategyComparison [-t ߳б] [-s skewб] [-d ] [-w Ԥ]
+ *                                  [-k ] [-o ļ]
+ * бöŷָ -t 1,8,32 -s 0,0.99,1.2
+ *
+ * @author wsc
+ *
+ */
+public class PurchaseStrategyComparison {
+
+    public static void main(String[] args)
+        throws IOException, InterruptedException
+    {
+        int[] threads = {1, 4, 16, 64};
+        double[] skews = {0, 0.99, 1.2};
+        LoadGenerator generator = new LoadGenerator();
+        //ջԣÿ߳̾ܿط󣬱ȽϵǸܴﵽ
+        generator.setRate(0);
+        generator.setDurationMillis(10000);
+        generator.setKeys(1000);
+        File output = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i])) {
+                String[] parts = args[++i].split(",");
+                threads = new int[parts.length];
+                for (int j = 0; j < parts.length; j++) {
+                    threads[j] = Integer.parseInt(parts[j]);
+                }
+            } else if ("-s".equals(args[i])) {
+                String[] parts = args[++i].split(",");
+                skews = new double[parts.length];
+                for (int j = 0; j < parts.length; j++) {
+                    skews[j] = Double.parseDouble(parts[j]);
+                }
+            } else if ("-d".equals(args[i])) {
+                generator.setDurationMillis((long)(Double.parseDouble(args[++i]) * 1000));
+            } else if ("-w".equals(args[i])) {
+                generator.setWarmupMillis((long)(Double.parseDouble(args[++i]) * 1000));
+            } else if ("-k".equals(args[i])) {
+                generator.setKeys(Integer.parseInt(args[++i]));
+            } else if ("-o".equals(args[i])) {
+                output = new File(args[++i]);
+            }
+        }
+
+        List<LoadGenerator.LoadResult> results = new ArrayList<LoadGenerator.LoadResult>();
+        for (double skew : skews) {
+            generator.setSkew(skew);
+            for (int t : threads) {
+                generator.setThreads(t);
+                for (LoadGenerator.Scenario scenario : strategies()) {
+                    System.out.println("# Running " + scenario.getName() + " threads=" + t + " skew=" + skew);
+                    CountingScenario counting = new CountingScenario(scenario);
+                    LoadGenerator.LoadResult result = generator.run(counting);
+                    result.setCommands(counting.commands, counting.successes.get());
+                    results.add(result);
+                }
+            }
+        }
+
+        System.out.println();
+        printResults(results);
+        if (output != null) {
+            LoadGenerator.writeResults(results, output);
+            System.out.println("Results written to " + output);
+        }
+    }
+
+    public static void printResults(List<LoadGenerator.LoadResult> results) {
+        System.out.println(String.format("%-8s %4s %6s %10s %9s %9s %9s %9s %10s",
+            "Strategy", "Thr", "Skew", "ops/s", "p50 us", "p99 us", "p999 us", "aborts", "cmds/ok"));
+        for (LoadGenerator.LoadResult r : results) {
+            System.out.println(String.format("%-8s %4d %6.2f %10.1f %9.1f %9.1f %9.1f %9d %10.2f",
+                r.getName(), r.getThreads(), r.getSkew(), r.getThroughput(),
+                r.getP50Micros(), r.getP99Micros(), r.getP999Micros(), r.getAborts(), r.getCommandsPerSuccess()));
+        }
+    }
+
+    /**
+     * ʵֵĹ򳡾ÿεöµʵʹֹ0ʼͳ
+     *
+     * @return
+     */
+    public static List<LoadGenerator.Scenario> strategies() {
+        final Chapter04 ch04 = new Chapter04();
+        final Chapter06 ch06 = new Chapter06();
+        final ScriptedMarket scripted = new ScriptedMarket();
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicLong lockTimeouts = new AtomicLong();
+        List<LoadGenerator.Scenario> scenarios = new ArrayList<LoadGenerator.Scenario>();
+
+        scenarios.add(new LoadGenerator.PurchaseScenario("watch", sequence) {
+            protected boolean purchase(Jedis conn, String buyerId, String itemId) {
+                return ch04.purchaseItem(conn, buyerId, itemId, "seller", 10);
+            }
+            public long getAborts() {
+                return ch04.getWatchAborts();
+            }
+        });
+
+        scenarios.add(new LoadGenerator.PurchaseScenario("lock", sequence) {
+            protected boolean purchase(Jedis conn, String buyerId, String itemId) {
+                String lockName = "market:" + itemId;
+                String identifier = ch06.acquireLockWithTimeout(conn, lockName, 1000, 10000);
+                if (identifier == null) {
+                    lockTimeouts.incrementAndGet();
+                    return false;
+                }
+                try {
+                    return purchaseLocked(conn, buyerId, itemId, "seller", 10);
+                } finally {
+                    ch06.releaseLock(conn, lockName, identifier);
+                }
+            }
+            public long getAborts() {
+                return lockTimeouts.get();
+            }
+        });
+
+        scenarios.add(new LoadGenerator.PurchaseScenario("script", sequence) {
+            protected boolean purchase(Jedis conn, String buyerId, String itemId) {
+                return scripted.purchaseItem(conn, buyerId, itemId, "seller", 10);
+            }
+        });
+
+        return scenarios;
+    }
+
+    /**
+     * ƷʱִеĹChapter04.purchaseItemļƶͬʹWATCH
+     * ֻƷҵʽ㹻࣬ڼ֮򻨹
+     */
+    private static boolean purchaseLocked(Jedis conn, String buyerId, String itemId, String sellerId, double lprice) {
+        String buyer = "users:" + buyerId;
+        String item = itemId + '.' + sellerId;
+
+        Pipeline pipe = conn.pipelined();
+        Response<Double> price = pipe.zscore("market:", item);
+        Response<String> funds = pipe.hget(buyer, "funds");
+        pipe.sync();
+        if (price.get() == null || price.get() != lprice || funds.get() == null
+            || price.get() > Double.parseDouble(funds.get()))
+        {
+            return false;
+        }
+
+        Transaction trans = conn.multi();
+        trans.hincrBy("users:" + sellerId, "funds", price.get().intValue());
+        trans.hincrBy(buyer, "funds", -price.get().intValue());
+        trans.sadd("inventory:" + buyerId, itemId);
+        trans.zrem("market:", item);
+        trans.zrem("market:seller:" + sellerId, item);
+        trans.exec();
+        return true;
+    }
+
+    /**
+     * ͳڼɹĴͷ׼׶ε
+     */
+    private static class CountingScenario
+        extends LoadGenerator.Scenario
+    {
+        private final LoadGenerator.Scenario scenario;
+        private final AtomicLong successes = new AtomicLong();
+        private long commandsBefore;
+        private long commands;
+
+        private CountingScenario(LoadGenerator.Scenario scenario) {
+            super(scenario.getName());
+            this.scenario = scenario;
+        }
+
+        public void setup(Jedis conn, int keys) {
+            scenario.setup(conn, keys);
+            commandsBefore = RedisInfo.commandsProcessed(conn);
+        }
+
+        public boolean execute(Jedis conn, int key) {
+            boolean ok = scenario.execute(conn, key);
+            if (ok) {
+                successes.incrementAndGet();
+            }
+            return ok;
+        }
+
+        public long getAborts() {
+            return scenario.getAborts();
+        }
+
+        public void teardown(Jedis conn) {
+            //ȥINFO
+            commands = RedisInfo.commandsProcessed(conn) - commandsBefore - 2;
+            scenario.teardown(conn);
+        }
+    }
+}
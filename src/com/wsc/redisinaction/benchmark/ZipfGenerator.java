@@ -0,0 +1,36 @@
+package com.wsc.redisinaction.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipfֲ[0, n)֮ļţԽСѡеĸԽ
+ * skewΪ0ʱ˻ΪȷֲskewԽȵԽУֵ0.99
+ * ۻֲڹʱãÿȡֻҪһζֲңʵɱ䣬֮߳乲
+ *
+ * @author wsc
+ *
+ */
+public class ZipfGenerator {
+    private final double[] cdf;
+
+    public ZipfGenerator(int n, double skew) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    public int next(Random random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return Math.min(index, cdf.length - 1);
+    }
+}
@@ -0,0 +1,644 @@
+package com.wsc.redisinaction.chapter02;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.gson.Gson;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
+
+import com.wsc.redisinaction.chapter02.Chapter02.Inventory;
+import com.wsc.redisinaction.util.LuaScript;
+
+public class BatchCacheRows {
+
+    public static void main(String[] args)
+            throws InterruptedException
+    {
+        new BatchCacheRows().run();
+    }
+
+    public void run()
+            throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testBatchCacheRows(conn);
+        testBenchmarkRowLoaders();
+    }
+
+    public void testBatchCacheRows(Jedis conn)
+            throws InterruptedException
+    {
+        System.out.println("\n----- testBatchCacheRows -----");
+        System.out.println("First, let's schedule caching of 100 rows every 5 seconds");
+        for (int i = 0; i < 100; i++) {
+            chapter02.scheduleRowCache(conn, "batchItem" + i, 5);
+        }
+        Set<Tuple> s = conn.zrangeWithScores("schedule:", 0, -1);
+        System.out.println("Our schedule has " + s.size() + " rows");
+        assert s.size() >= 100;
+
+        System.out.println("We'll start a batch caching thread that will cache the data...");
+        BatchCacheRowsThread thread = new BatchCacheRowsThread(50, 4);
+        thread.start();
+
+        Thread.sleep(1000);
+        String r = conn.get("inv:batchItem0");
+        System.out.println("Our cached data looks like:");
+        System.out.println(r);
+        assert r != null;
+        assert conn.get("inv:batchItem99") != null;
+        System.out.println("Rows refreshed so far: " + thread.getRefreshed());
+
+        System.out.println("Unchanged rows are not rewritten on the next refreshes...");
+        conn.del("inv:batchItem0");
+        Thread.sleep(5500);
+        System.out.println("Rows refreshed: " + thread.getRefreshed() + ", written: " + thread.getWritten());
+        assert thread.getWritten() < thread.getRefreshed();
+        assert conn.get("inv:batchItem0") == null;
+        System.out.println("Observed change rate: " + thread.getChangeRate());
+        assert thread.getChangeRate() == 0;
+        //ڹ߳Уÿˢ5֮Żûб仯ӳټӱ
+        thread.setDelayTuning(1, 60);
+        for (int i = 0; i < 10; i++) {
+            chapter02.scheduleRowCache(conn, "tuneItem" + i, 1);
+        }
+        Thread.sleep(6500);
+        System.out.println("Rows with tuned delays so far: " + thread.getTuned());
+        assert thread.getTuned() >= 10;
+        for (int i = 0; i < 10; i++) {
+            Double delay = conn.zscore("delay:", "tuneItem" + i);
+            assert delay != null && delay > 1;
+        }
+
+        System.out.println("Rows can also be cached in the compact binary format");
+        BatchCacheRowsThread binaryThread = new BatchCacheRowsThread(50, 4);
+        binaryThread.setBinary(true);
+        chapter02.scheduleRowCache(conn, "batchItem0", 5);
+        conn.del("inv:batchItem0");
+        binaryThread.start();
+        Thread.sleep(1000);
+        binaryThread.quit();
+        Inventory row = RowCodec.readRow(conn, "batchItem0");
+        assert row != null && "batchItem0".equals(row.getId());
+
+        System.out.println("Let's force un-caching");
+        for (int i = 0; i < 100; i++) {
+            chapter02.scheduleRowCache(conn, "batchItem" + i, -1);
+        }
+        for (int i = 0; i < 10; i++) {
+            chapter02.scheduleRowCache(conn, "tuneItem" + i, -1);
+        }
+        Thread.sleep(1000);
+        r = conn.get("inv:batchItem0");
+        System.out.println("The cache was cleared? " + (r == null));
+        assert r == null;
+
+        thread.quit();
+        Thread.sleep(2000);
+        if (thread.isAlive()){
+            throw new RuntimeException("The batch caching thread is still alive?!?");
+        }
+    }
+
+    public void testBenchmarkRowLoaders() {
+        System.out.println("\n----- testBenchmarkRowLoaders -----");
+        System.out.println("Loading 2000 rows with 4 workers, 1ms per query and 10us per row");
+        List<String> rowIds = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            rowIds.add("benchItem" + i);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            double single = 0;
+            for (int loadBatch : new int[]{1, 10, 50, 200}) {
+                double rate = benchmarkRowLoader(pool, new LocalRowLoader(1000, 10), rowIds, loadBatch);
+                if (loadBatch == 1) {
+                    single = rate;
+                }
+            }
+            assert single > 0;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * ʹøķСȡУӡÿȡԼÿеƽȡӳ
+     *
+     * @param pool
+     * @param loader
+     * @param rowIds
+     * @param loadBatch
+     * @return ÿȡ
+     */
+    public double benchmarkRowLoader(
+            ExecutorService pool, final RowLoader loader, List<String> rowIds, int loadBatch) {
+        final AtomicLong rowNanos = new AtomicLong();
+        RowLoader timed = new RowLoader(){
+            public Map<String,Inventory> loadAll(Collection<String> ids){
+                long start = System.nanoTime();
+                Map<String,Inventory> rows = loader.loadAll(ids);
+                //ͬһβѯȡÿһжҪȴѯ
+                rowNanos.addAndGet((System.nanoTime() - start) * ids.size());
+                return rows;
+            }
+        };
+
+        long start = System.nanoTime();
+        int loaded = loadRows(pool, timed, rowIds, loadBatch).size();
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+
+        double rate = loaded / seconds;
+        double latency = loaded == 0 ? 0 : rowNanos.get() / 1000.0 / loaded;
+        System.out.println(String.format(
+            "  loadBatch=%-4d rows/s=%10.1f  avg per-row latency=%8.1fus",
+            loadBatch, rate, latency));
+        return rate;
+    }
+
+    private final Chapter02 chapter02 = new Chapter02();
+
+    /**
+     * һеڵУARGV[2]
+     * Ҫлᱻµȵnow + delayӳֵһ𷵻أ
+     * ӳֵСڵ0ѲڣֱӴӵƳɾ棬صӳֵΪ0
+     * ֵĵһԪ֮һеĵʱ䣬ûΪַ
+     */
+    private static final LuaScript CLAIM_DUE_ROWS = new LuaScript(
+        "local due = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])) " +
+        "local result = {} " +
+        "for i, row in ipairs(due) do " +
+        "  local delay = tonumber(redis.call('zscore', KEYS[2], row)) " +
+        "  if not delay or delay <= 0 then " +
+        "    redis.call('zrem', KEYS[2], row) " +
+        "    redis.call('zrem', KEYS[1], row) " +
+        "    redis.call('del', 'inv:' .. row) " +
+        "    table.insert(result, row) " +
+        "    table.insert(result, '0') " +
+        "  else " +
+        "    redis.call('zadd', KEYS[1], tonumber(ARGV[1]) + delay, row) " +
+        "    table.insert(result, row) " +
+        "    table.insert(result, tostring(delay)) " +
+        "  end " +
+        "end " +
+        "local nextDue = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES') " +
+        "table.insert(result, 1, nextDue[2] or '') " +
+        "return result");
+
+    /**
+     * ֻµǰӳȻ0еӳ٣ARGVΪIDӳٽУ
+     * ⸲scheduleRowCache(row, -1)ոȡĻ档ظµ
+     */
+    private static final LuaScript TUNE_DELAYS = new LuaScript(
+        "local tuned = 0 " +
+        "for i = 1, #ARGV, 2 do " +
+        "  local delay = tonumber(redis.call('zscore', KEYS[1], ARGV[i])) " +
+        "  if delay and delay > 0 then " +
+        "    redis.call('zadd', KEYS[1], tonumber(ARGV[i + 1]), ARGV[i]) " +
+        "    tuned = tuned + 1 " +
+        "  end " +
+        "end " +
+        "return tuned");
+
+    /**
+     * аÿloadBatchз飬̳߳زжȡл
+     * ÿһֻһRowLoader.loadAll
+     *
+     * @param pool
+     * @param loader
+     * @param rowIds
+     * @param loadBatch
+     * @return IDлӳ
+     */
+    public Map<String,CachedRow> loadRows(
+            ExecutorService pool, RowLoader loader, List<String> rowIds, int loadBatch) {
+        return loadRows(pool, loader, rowIds, loadBatch, false);
+    }
+
+    /**
+     * loadRowsͬbinaryΪtrueʱʹRowCodecУʹJSON
+     *
+     * @param pool
+     * @param loader
+     * @param rowIds
+     * @param loadBatch
+     * @param binary
+     * @return IDлӳ
+     */
+    public Map<String,CachedRow> loadRows(
+            ExecutorService pool, final RowLoader loader, List<String> rowIds,
+            int loadBatch, final boolean binary) {
+        int chunk = Math.max(1, loadBatch);
+        List<Future<Map<String,CachedRow>>> futures = new ArrayList<Future<Map<String,CachedRow>>>();
+        for (int start = 0; start < rowIds.size(); start += chunk) {
+            final List<String> part = rowIds.subList(start, Math.min(start + chunk, rowIds.size()));
+            futures.add(pool.submit(new Callable<Map<String,CachedRow>>(){
+                public Map<String,CachedRow> call(){
+                    Gson gson = new Gson();
+                    Map<String,CachedRow> rows = new HashMap<String,CachedRow>();
+                    for (Map.Entry<String,Inventory> entry : loader.loadAll(part).entrySet()) {
+                        Inventory row = entry.getValue();
+                        byte[] payload = binary
+                            ? RowCodec.encode(row) : SafeEncoder.encode(gson.toJson(row));
+                        rows.put(entry.getKey(), new CachedRow(payload, fingerprint(row)));
+                    }
+                    return rows;
+                }
+            }));
+        }
+
+        Map<String,CachedRow> rows = new HashMap<String,CachedRow>();
+        for (Future<Map<String,CachedRow>> future : futures) {
+            try {
+                rows.putAll(future.get());
+            }catch(InterruptedException ie){
+                Thread.currentThread().interrupt();
+            }catch(ExecutionException ee){
+                throw new RuntimeException(ee.getCause());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * ݵ64λָƣFNV-1aֻеݣ
+     * ÿζȡ仯Ķȡʱ䣬ûб仯ʱָƱֲ
+     *
+     * @param row
+     * @return
+     */
+    public long fingerprint(Inventory row) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fingerprint(hash, row.getId());
+        hash = fingerprint(hash, row.getData());
+        return hash;
+    }
+
+    private long fingerprint(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        //ֶ֮ķָ("ab", "c")("a", "bc")õָͬ
+        hash ^= 0xff;
+        hash *= 0x100000001b3L;
+        return hash;
+    }
+
+    /**
+     * л֮Լָ
+     */
+    public static class CachedRow {
+        public final byte[] payload;
+        public final long fingerprint;
+
+        public CachedRow(byte[] payload, long fingerprint) {
+            this.payload = payload;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * ˢΪÿм¼״̬һдָơǰӳԼݱ仯
+     */
+    public static class RowState {
+        //ֻˢ߳޸ģֶο̶ܱ߳ȡ
+        private long fingerprint;
+        private boolean written;
+        private int skips;
+        private volatile int delay;
+        private volatile long refreshes;
+        private volatile long changes;
+        private volatile double changeRate;
+
+        public int getDelay() {
+            return delay;
+        }
+
+        public long getRefreshes() {
+            return refreshes;
+        }
+
+        public long getChanges() {
+            return changes;
+        }
+
+        /**
+         * ɴˢݷ仯ıָƶƽ
+         */
+        public double getChangeRate() {
+            return changeRate;
+        }
+    }
+
+    /**
+     * ȵлػ̡߳
+     * CacheRowsThreadÿֻһвͬһԭӲȫڵУ
+     * ̳߳ضȡУͨһˮ߰ѽдأ
+     * ʱߵһʱ䣬ÿ50ѯһΡ
+     * ָûб仯вᱻдֻmaxSkips֮ǿдһΣ
+     * Աڻ汻ɾתƣָܹ֮
+     *
+     * @author wsc
+     *
+     */
+    public class BatchCacheRowsThread
+        extends Thread
+    {
+        private Jedis conn;
+        private boolean quit;
+        private int batchSize;
+        private int workers;
+        private RowLoader loader;
+        private int loadBatch;
+        private boolean binary;
+        private long maxIdle = 500;
+        private int maxSkips = 10;
+        private volatile int minDelay;
+        private volatile int maxDelay;
+        private volatile long tuned;
+        private volatile long refreshed;
+        private volatile long written;
+        private volatile long skippedBytes;
+        private final Map<String,RowState> states = new ConcurrentHashMap<String,RowState>();
+
+        public BatchCacheRowsThread(int batchSize, int workers) {
+            this(batchSize, workers, new InventoryRowLoader(), (batchSize + workers - 1) / workers);
+        }
+
+        public BatchCacheRowsThread(int batchSize, int workers, RowLoader loader, int loadBatch) {
+            this.conn = new Jedis("localhost");
+            this.conn.select(15);
+            this.batchSize = batchSize;
+            this.workers = workers;
+            this.loader = loader;
+            this.loadBatch = loadBatch;
+        }
+
+        /**
+         * ʹRowCodecĶƸʽд뻺ֵȡͨRowCodec.readRowȡ
+         * ͬʱݾɵJSONֵ
+         */
+        public void setBinary(boolean binary) {
+            this.binary = binary;
+        }
+
+        public void quit() {
+            quit = true;
+        }
+
+        public long getRefreshed() {
+            return refreshed;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        /**
+         * Ϊûб仯дֽ
+         */
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        /**
+         * ڻеݱ仯
+         */
+        public double getChangeRate() {
+            long refreshes = 0;
+            long changes = 0;
+            for (RowState state : states.values()) {
+                refreshes += state.refreshes;
+                changes += state.changes;
+            }
+            return refreshes == 0 ? 0 : (double)changes / refreshes;
+        }
+
+        public RowState getRowState(String rowId) {
+            return states.get(rowId);
+        }
+
+        /**
+         * ݹ۲쵽ݱ仯ʵеĵӳ٣
+         * 仯ӳ٣ٱ仯ӳӳ٣[minDelay, maxDelay]֮䡣
+         * ˢ߳ÿһд֮УminDelayΪ0ʱ
+         *
+         * @param minDelay
+         * @param maxDelay
+         */
+        public void setDelayTuning(int minDelay, int maxDelay) {
+            this.maxDelay = maxDelay;
+            this.minDelay = minDelay;
+        }
+
+        /**
+         * ӳٵĴ
+         */
+        public long getTuned() {
+            return tuned;
+        }
+
+        public void run() {
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            try {
+                while (!quit){
+                    long now = System.currentTimeMillis() / 1000;
+
+                    //쵽ڵУͬʱȡǵӳֵԼһʱ
+                    List<String> claimed = claimDueRows(now);
+                    String nextDue = claimed.get(0);
+                    List<String> rowIds = new ArrayList<String>();
+                    for (int i = 1; i < claimed.size(); i += 2) {
+                        String rowId = claimed.get(i);
+                        int delay = (int)Double.parseDouble(claimed.get(i + 1));
+                        if (delay <= 0) {
+                            //Ѿٻ棬״̬
+                            states.remove(rowId);
+                            continue;
+                        }
+                        RowState state = states.get(rowId);
+                        if (state == null) {
+                            state = new RowState();
+                            states.put(rowId, state);
+                        }
+                        state.delay = delay;
+                        rowIds.add(rowId);
+                    }
+
+                    if (rowIds.size() > 0) {
+                        Map<String,CachedRow> rows = loadRows(pool, loader, rowIds, loadBatch, binary);
+                        writeRows(rows);
+                        refreshed += rows.size();
+                        tuneDelays(rowIds);
+                    }
+
+                    //˵ܻеڵУ
+                    if (claimed.size() / 2 >= batchSize) {
+                        continue;
+                    }
+
+                    long wait = maxIdle;
+                    if (nextDue.length() > 0) {
+                        long dueMillis = (long)(Double.parseDouble(nextDue) * 1000);
+                        wait = Math.min(maxIdle, dueMillis - System.currentTimeMillis());
+                    }
+                    if (wait > 0) {
+                        try {
+                            sleep(wait);
+                        }catch(InterruptedException ie){
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<String> claimDueRows(long now) {
+            return (List<String>)CLAIM_DUE_ROWS.call(
+                conn, 2, "schedule:", "delay:",
+                String.valueOf(now), String.valueOf(batchSize));
+        }
+
+        /**
+         * Ϊһˢ¹5εмµӳ٣ͨTUNE_DELAYSһдdelay:
+         */
+        private void tuneDelays(List<String> rowIds) {
+            int min = minDelay;
+            int max = maxDelay;
+            if (min <= 0) {
+                return;
+            }
+            List<String> args = new ArrayList<String>();
+            args.add("delay:");
+            for (String rowId : rowIds) {
+                RowState state = states.get(rowId);
+                if (state == null || state.refreshes < 5 || state.delay <= 0) {
+                    continue;
+                }
+                int delay = state.delay;
+                if (state.changeRate > 0.5) {
+                    delay = Math.max(min, delay / 2);
+                } else if (state.changeRate < 0.1) {
+                    delay = Math.min(max, delay * 2);
+                }
+                if (delay != state.delay) {
+                    args.add(rowId);
+                    args.add(String.valueOf(delay));
+                }
+            }
+            if (args.size() > 1) {
+                tuned += (Long)TUNE_DELAYS.call(conn, 1, args.toArray(new String[args.size()]));
+            }
+        }
+
+        /**
+         * ͨһˮдһݷ仯Ļֵ
+         */
+        private void writeRows(Map<String,CachedRow> rows) {
+            Pipeline pipe = conn.pipelined();
+            int pending = 0;
+            for (Map.Entry<String,CachedRow> entry : rows.entrySet()) {
+                CachedRow row = entry.getValue();
+                RowState state = states.get(entry.getKey());
+                boolean changed = !state.written || state.fingerprint != row.fingerprint;
+
+                state.refreshes++;
+                if (state.written) {
+                    if (changed) {
+                        state.changes++;
+                    }
+                    state.changeRate = state.changeRate * 0.8 + (changed ? 0.2 : 0);
+                }
+
+                if (!changed && state.skips < maxSkips) {
+                    state.skips++;
+                    skippedBytes += row.payload.length;
+                    continue;
+                }
+
+                pipe.set(SafeEncoder.encode("inv:" + entry.getKey()), row.payload);
+                state.fingerprint = row.fingerprint;
+                state.written = true;
+                state.skips = 0;
+                pending++;
+            }
+            if (pending > 0) {
+                pipe.sync();
+                written += pending;
+            }
+        }
+    }
+
+    /**
+     * Ĭϵжȡʽÿеȡһ
+     */
+    public static class InventoryRowLoader
+        implements RowLoader
+    {
+        public Map<String,Inventory> loadAll(Collection<String> rowIds) {
+            Map<String,Inventory> rows = new HashMap<String,Inventory>();
+            for (String rowId : rowIds) {
+                rows.put(rowId, Inventory.get(rowId));
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * ܲԵıԴģݿѯĿ
+     * ÿβѯй̶ӳ٣ÿȡһһСʱ
+     */
+    public static class LocalRowLoader
+        implements RowLoader
+    {
+        private final long queryMicros;
+        private final long rowMicros;
+        private final AtomicLong queries = new AtomicLong();
+
+        public LocalRowLoader(long queryMicros, long rowMicros) {
+            this.queryMicros = queryMicros;
+            this.rowMicros = rowMicros;
+        }
+
+        public long getQueries() {
+            return queries.get();
+        }
+
+        public Map<String,Inventory> loadAll(Collection<String> rowIds) {
+            queries.incrementAndGet();
+            long end = System.nanoTime() + (queryMicros + rowMicros * rowIds.size()) * 1000;
+            while (System.nanoTime() < end) {
+                LockSupport.parkNanos(end - System.nanoTime());
+            }
+            Map<String,Inventory> rows = new HashMap<String,Inventory>();
+            for (String rowId : rowIds) {
+                rows.put(rowId, Inventory.get(rowId));
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.wsc.redisinaction.chapter02;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Jedis;
+
+import com.wsc.redisinaction.chapter02.Chapter02.Callback;
+
+public class CacheWarmup {
+
+    public static void main(String[] args)
+            throws InterruptedException
+    {
+        new CacheWarmup().run();
+    }
+
+    public void run()
+            throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testCacheWarmup(conn);
+    }
+
+    public void testCacheWarmup(Jedis conn)
+            throws InterruptedException
+    {
+        System.out.println("\n----- testCacheWarmup -----");
+        String baseUrl = "http://test.com/";
+        for (int i = 0; i < 20; i++) {
+            conn.zadd("viewed:", -(20 - i), "warm-item" + i);
+            conn.del("cache:" + chapter02.hashRequest(canonicalRequest(baseUrl, "warm-item" + i)));
+        }
+
+        Callback callback = new Callback(){
+            public String call(String request){
+                return "content for " + request;
+            }
+        };
+
+        System.out.println("Let's warm up the pages of the 10 most viewed items");
+        WarmupResult result = warmup(conn, baseUrl, callback, 10, 4, 100, 1.0, 1);
+        System.out.println(result);
+        assert result.rendered == 10;
+
+        String url = canonicalRequest(baseUrl, "warm-item0");
+        String content = chapter02.cacheRequest(conn, url, null);
+        System.out.println("The most viewed page is already cached: " + content);
+        assert content != null;
+
+        System.out.println("Once live traffic reports a good hit ratio the warm-up stops early");
+        final String liveUrl = url;
+        Thread live = new Thread(){
+            public void run(){
+                try {
+                    sleep(200);
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                }
+                Jedis liveConn = new Jedis("localhost");
+                liveConn.select(15);
+                for (int i = 0; i < 10; i++) {
+                    chapter02.cacheRequest(liveConn, liveUrl, null);
+                }
+                liveConn.disconnect();
+            }
+        };
+        for (int i = 10; i < 20; i++) {
+            conn.del("cache:" + chapter02.hashRequest(canonicalRequest(baseUrl, "warm-item" + i)));
+        }
+        live.start();
+        //ǰ10ҳѾ棬ǲռȾɣÿ2ҳ棬Ⱦڶɾͻֹͣ
+        long start = System.currentTimeMillis();
+        WarmupResult second = warmup(conn, baseUrl, callback, 20, 2, 2, 0.5, 5);
+        long elapsed = System.currentTimeMillis() - start;
+        live.join();
+        System.out.println(second + " in " + elapsed + "ms");
+        assert second.stoppedEarly;
+        assert second.skipped == 10;
+        assert second.rendered >= 1 && second.rendered <= 2;
+        assert elapsed < 2000;
+    }
+
+    private final Chapter02 chapter02 = new Chapter02();
+
+    /**
+     * ƷҳĹ淶URLcanCache/extractItemIdĸʽһ
+     *
+     * @param baseUrl
+     * @param itemId
+     * @return
+     */
+    public String canonicalRequest(String baseUrl, String itemId) {
+        return baseUrl + "?item=" + itemId;
+    }
+
+    /**
+     * ȡviewed:countƷתΪӦĹ淶URL
+     *
+     * @param conn
+     * @param baseUrl
+     * @param count
+     * @return
+     */
+    public List<String> topItemRequests(Jedis conn, String baseUrl, int count) {
+        //viewed:еķֵΪԽǰƷԽ
+        Set<String> items = conn.zrange("viewed:", 0, count - 1);
+        List<String> requests = new ArrayList<String>(items.size());
+        for (String item : items) {
+            requests.add(canonicalRequest(baseUrl, item));
+        }
+        return requests;
+    }
+
+    /**
+     * ת֮ĻԤȡ
+     * ԤȾŵƷҳ棬ʹparallelism̲߳Ⱦ
+     * ȾٶÿratePerSecondҳڣԤȱѹˡ
+     * ԤȿʼʴﵽtargetHitRatiominSamplesʱǰֹͣ
+     *
+     * @param conn
+     * @param baseUrl
+     * @param callback
+     * @param topN
+     * @param parallelism
+     * @param ratePerSecond
+     * @param targetHitRatio
+     * @param minSamples
+     * @return
+     * @throws InterruptedException
+     */
+    public WarmupResult warmup(
+            Jedis conn, String baseUrl, Callback callback, int topN,
+            int parallelism, double ratePerSecond, double targetHitRatio, long minSamples)
+        throws InterruptedException
+    {
+        List<String> requests = topItemRequests(conn, baseUrl, topN);
+        WarmupState state = new WarmupState(
+            requests, callback, ratePerSecond, targetHitRatio, minSamples);
+
+        List<WarmupThread> threads = new ArrayList<WarmupThread>();
+        for (int i = 0; i < Math.max(1, parallelism); i++) {
+            WarmupThread thread = new WarmupThread(state);
+            threads.add(thread);
+            thread.start();
+        }
+        for (WarmupThread thread : threads) {
+            thread.join();
+        }
+
+        return new WarmupResult(
+            requests.size(), state.rendered.get(), state.skipped.get(),
+            state.stopped, state.hitRatio());
+    }
+
+    /**
+     * ԤĹ״̬ȾURLԼԤȿʼʱм
+     */
+    private class WarmupState {
+        private final List<String> requests;
+        private final Callback callback;
+        private final double targetHitRatio;
+        private final long minSamples;
+        private final long intervalNanos;
+        private final long startHits;
+        private final long startMisses;
+
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger rendered = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private long nextPermit = System.nanoTime();
+        private volatile boolean stopped;
+
+        private WarmupState(
+                List<String> requests, Callback callback, double ratePerSecond,
+                double targetHitRatio, long minSamples) {
+            this.requests = requests;
+            this.callback = callback;
+            this.targetHitRatio = targetHitRatio;
+            this.minSamples = minSamples;
+            this.intervalNanos = ratePerSecond > 0 ? (long)(1000000000L / ratePerSecond) : 0;
+            this.startHits = Chapter02.getCacheHits();
+            this.startMisses = Chapter02.getCacheMisses();
+        }
+
+        /**
+         * Ԥȿʼ֮
+         */
+        private double hitRatio() {
+            long h = Chapter02.getCacheHits() - startHits;
+            long total = h + Chapter02.getCacheMisses() - startMisses;
+            return total == 0 ? 0 : (double)h / total;
+        }
+
+        private boolean targetReached() {
+            long total = Chapter02.getCacheHits() - startHits + Chapter02.getCacheMisses() - startMisses;
+            return total >= minSamples && hitRatio() >= targetHitRatio;
+        }
+
+        /**
+         * ȡһȾɣҪȴ
+         */
+        private synchronized long reservePermit() {
+            long now = System.nanoTime();
+            long permit = Math.max(now, nextPermit);
+            nextPermit = permit + intervalNanos;
+            return permit - now;
+        }
+    }
+
+    /**
+     * Ԥȹ̣߳ÿ߳ʹԼ
+     */
+    private class WarmupThread
+        extends Thread
+    {
+        private final WarmupState state;
+        private Jedis conn;
+
+        private WarmupThread(WarmupState state) {
+            this.state = state;
+            this.conn = new Jedis("localhost");
+            this.conn.select(15);
+        }
+
+        public void run() {
+            try {
+                while (!state.stopped) {
+                    int index = state.next.getAndIncrement();
+                    if (index >= state.requests.size()) {
+                        break;
+                    }
+                    if (state.targetReached()) {
+                        state.stopped = true;
+                        break;
+                    }
+
+                    String request = state.requests.get(index);
+                    if (!chapter02.canCache(conn, request)) {
+                        state.skipped.incrementAndGet();
+                        continue;
+                    }
+
+                    //ҳѾ󻺴棬ٴȾ
+                    String pageKey = "cache:" + chapter02.hashRequest(request);
+                    if (conn.exists(pageKey)) {
+                        state.skipped.incrementAndGet();
+                        continue;
+                    }
+
+                    //ֻҪȾҳռ
+                    long wait = state.reservePermit();
+                    if (wait > 0) {
+                        try {
+                            sleep(wait / 1000000, (int)(wait % 1000000));
+                        }catch(InterruptedException ie){
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        //ȴڼʿѾﵽĿ
+                        if (state.targetReached()) {
+                            state.stopped = true;
+                            break;
+                        }
+                    }
+
+                    conn.setex(pageKey, 300, state.callback.call(request));
+                    state.rendered.incrementAndGet();
+                }
+            } finally {
+                conn.disconnect();
+            }
+        }
+    }
+
+    public static class WarmupResult {
+        public final int candidates;
+        public final int rendered;
+        public final int skipped;
+        public final boolean stoppedEarly;
+        public final double hitRatio;
+
+        public WarmupResult(
+                int candidates, int rendered, int skipped, boolean stoppedEarly, double hitRatio) {
+            this.candidates = candidates;
+            this.rendered = rendered;
+            this.skipped = skipped;
+            this.stoppedEarly = stoppedEarly;
+            this.hitRatio = hitRatio;
+        }
+
+        public String toString() {
+            return "candidates=" + candidates + " rendered=" + rendered +
+                " skipped=" + skipped + " stoppedEarly=" + stoppedEarly +
+                " hitRatio=" + hitRatio;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.wsc.redisinaction.chapter02;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Ĺﳵ첽鵵
+ * ̵߳archive()ѹﳵнкأʱùﳵ
+ * ̨߳ȡﳵԡ4ֽڳ + ¼ݡĸʽ׷д뱾ļ
+ * ÿдһִһfsyncдʧʱļضϵһļ¼һΪ
+ * ¼еַԡ4ֽڳ + UTF-8ֽڡ棬ûwriteUTF64KBơ
+ *
+ * @author wsc
+ *
+ */
+public class CartArchiver
+    implements Closeable
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testCartArchiver(conn);
+    }
+
+    public static void testCartArchiver(Jedis conn)
+        throws Exception
+    {
+        System.out.println("\n----- testCartArchiver -----");
+        Chapter02 chapter02 = new Chapter02();
+        String token = UUID.randomUUID().toString();
+        chapter02.updateToken(conn, token, "username", "itemX");
+        chapter02.addToCart(conn, token, "itemY", 3);
+
+        File file = File.createTempFile("carts", ".archive");
+        file.deleteOnExit();
+        CartArchiver archiver = new CartArchiver(file, 1000, 100);
+
+        System.out.println("Let's clean out our sessions and archive their carts");
+        Chapter02.CleanFullSessionsThread thread = chapter02.new CleanFullSessionsThread(0, archiver);
+        thread.start();
+        Thread.sleep(1000);
+        thread.quit();
+        Thread.sleep(2000);
+        if (thread.isAlive()){
+            throw new RuntimeException("The clean sessions thread is still alive?!?");
+        }
+        archiver.close();
+        assert conn.hgetAll("cart:" + token).size() == 0;
+
+        System.out.println("The archive holds " + archiver.getWritten() + " carts, dropped " + archiver.getDropped());
+        ArchiveReader reader = new ArchiveReader(file);
+        boolean found = false;
+        ArchivedCart cart;
+        while ((cart = reader.next()) != null) {
+            if (cart.session.equals(token)) {
+                System.out.println("  " + cart);
+                found = "3".equals(cart.items.get("itemY"));
+            }
+        }
+        reader.close();
+        assert found;
+
+        //Ȳļ¼˵ļѾ𻵣᳢Է޴
+        File corrupt = File.createTempFile("carts", ".archive");
+        corrupt.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(corrupt));
+        out.writeInt(-1);
+        out.close();
+        reader = new ArchiveReader(corrupt);
+        boolean rejected = false;
+        try {
+            reader.next();
+        }catch(IOException ioe){
+            rejected = true;
+        }
+        reader.close();
+        assert rejected;
+
+        //64KBֵҲдͶ
+        File large = File.createTempFile("carts", ".archive");
+        large.deleteOnExit();
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 70000) {
+            value.append("0123456789");
+        }
+        Map<String,String> items = new LinkedHashMap<String,String>();
+        items.put("itemZ", value.toString());
+        archiver = new CartArchiver(large, 10, 10);
+        boolean archived = archiver.archive("large", items);
+        assert archived;
+        archiver.close();
+        assert archiver.getWritten() == 1 && archiver.getDropped() == 0;
+        reader = new ArchiveReader(large);
+        cart = reader.next();
+        reader.close();
+        assert cart != null && value.toString().equals(cart.items.get("itemZ"));
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** ¼󳤶 */
+    static final int MAX_RECORD = 1 << 24;
+
+    private final BlockingQueue<ArchivedCart> queue;
+    private final int maxBatch;
+    private final FileOutputStream file;
+    private final WriterThread writer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    //archive()ڶ¼quitУclose()дquit
+    //quit֮вٳµĹﳵ
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean quit;
+    //һ¼֮ļ
+    private long goodLength;
+
+    public CartArchiver(File path, int capacity, int maxBatch)
+        throws IOException
+    {
+        this.queue = new ArrayBlockingQueue<ArchivedCart>(capacity);
+        this.maxBatch = maxBatch;
+        this.file = new FileOutputStream(path, true);
+        this.goodLength = file.getChannel().size();
+        this.writer = new WriterThread();
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * ύһĹﳵ
+     *
+     * @param session
+     * @param items
+     * @return ﳵʱfalse
+     */
+    public boolean archive(String session, Map<String,String> items) {
+        lock.readLock().lock();
+        try {
+            if (quit || !queue.offer(new ArchivedCart(session, System.currentTimeMillis(), items))) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * ֹͣµĹﳵѶʣĹﳵдļر
+     */
+    public void close()
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try {
+            quit = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            writer.join();
+        }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+        }
+        file.close();
+    }
+
+    private class WriterThread
+        extends Thread
+    {
+        public void run() {
+            List<ArchivedCart> batch = new ArrayList<ArchivedCart>(maxBatch);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            while (!quit || queue.size() > 0) {
+                int count = 0;
+                int oversized = 0;
+                try {
+                    ArchivedCart first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+
+                    //ڴб֮һд
+                    buffer.reset();
+                    for (ArchivedCart cart : batch) {
+                        record.reset();
+                        cart.writeTo(new DataOutputStream(record));
+                        if (record.size() > MAX_RECORD) {
+                            dropped.incrementAndGet();
+                            oversized++;
+                            continue;
+                        }
+                        out.writeInt(record.size());
+                        record.writeTo(out);
+                        count++;
+                    }
+                    //ÿһִֻһfsync
+                    buffer.writeTo(file);
+                    file.getFD().sync();
+                    goodLength += buffer.size();
+                    written.addAndGet(count);
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    break;
+                }catch(IOException ioe){
+                    //ûд룬ļ¼Ѿƹ
+                    dropped.addAndGet(batch.size() - oversized);
+                    //ȥдһΣļ¼ļ¼֮׷
+                    try {
+                        file.getChannel().truncate(goodLength);
+                    }catch(IOException truncate){
+                        //ضҲʧʱȡ𻵵ļ¼ֹͣ
+                    }
+                }finally{
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    public static class ArchivedCart {
+        public final String session;
+        public final long evictedAt;
+        public final Map<String,String> items;
+
+        public ArchivedCart(String session, long evictedAt, Map<String,String> items) {
+            this.session = session;
+            this.evictedAt = evictedAt;
+            this.items = items;
+        }
+
+        private void writeTo(DataOutputStream out)
+            throws IOException
+        {
+            writeString(out, session);
+            out.writeLong(evictedAt);
+            out.writeInt(items.size());
+            for (Map.Entry<String,String> entry : items.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value)
+            throws IOException
+        {
+            byte[] bytes = value.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in)
+            throws IOException
+        {
+            int length = in.readInt();
+            //¼Ѿضڴ棬ʣµַֽȵ
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Corrupt archive string length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private static ArchivedCart readFrom(DataInputStream in)
+            throws IOException
+        {
+            String session = readString(in);
+            long evictedAt = in.readLong();
+            int count = in.readInt();
+            Map<String,String> items = new LinkedHashMap<String,String>();
+            for (int i = 0; i < count; i++) {
+                String item = readString(in);
+                items.put(item, readString(in));
+            }
+            return new ArchivedCart(session, evictedAt, items);
+        }
+
+        public String toString() {
+            return session + " @" + evictedAt + " " + items;
+        }
+    }
+
+    /**
+     * ߷ʹõĹ鵵ļȡηļеĹﳵ
+     * ļĩβ˳дһļ¼ᱻ
+     *
+     * @author wsc
+     *
+     */
+    public static class ArchiveReader
+        implements Closeable
+    {
+        private final DataInputStream in;
+
+        public ArchiveReader(File path)
+            throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        }
+
+        /**
+         * һﳵļĩβʱnull
+         */
+        public ArchivedCart next()
+            throws IOException
+        {
+            try {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD) {
+                    throw new IOException("Corrupt archive record length: " + length);
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                return ArchivedCart.readFrom(
+                    new DataInputStream(new ByteArrayInputStream(record)));
+            }catch(EOFException eof){
+                return null;
+            }
+        }
+
+        public void close()
+            throws IOException
+        {
+            in.close();
+        }
+    }
+}
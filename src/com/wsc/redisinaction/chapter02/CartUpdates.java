@@ -0,0 +1,179 @@
+package com.wsc.redisinaction.chapter02;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+public class CartUpdates {
+
+    public static void main(String[] args) {
+        new CartUpdates().run();
+    }
+
+    public void run() {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testUpdateCart(conn);
+        testSessionCart(conn);
+    }
+
+    public void testUpdateCart(Jedis conn) {
+        System.out.println("\n----- testUpdateCart -----");
+        String session = UUID.randomUUID().toString();
+        conn.hset("cart:" + session, "itemA", "1");
+        conn.hset("cart:" + session, "itemB", "2");
+
+        System.out.println("Let's change several items of the cart in one round trip");
+        Map<String,Integer> changes = new LinkedHashMap<String,Integer>();
+        changes.put("itemA", 0);
+        changes.put("itemB", 5);
+        changes.put("itemC", 1);
+        Map<String,String> cart = updateCart(conn, session, changes);
+        System.out.println("Our shopping cart now has:");
+        for (Map.Entry<String,String> entry : cart.entrySet()){
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+        assert !cart.containsKey("itemA");
+        assert "5".equals(cart.get("itemB"));
+        assert "1".equals(cart.get("itemC"));
+        conn.del("cart:" + session);
+    }
+
+    public void testSessionCart(Jedis conn) {
+        System.out.println("\n----- testSessionCart -----");
+        String session = UUID.randomUUID().toString();
+        conn.hset("cart:" + session, "itemA", "1");
+
+        SessionCart cart = new SessionCart(conn, session);
+        cart.set("itemB", 2);
+        cart.set("itemA", 0);
+        System.out.println("Pending edits are visible to the rest of the request: " + cart.items());
+        assert cart.get("itemA") == 0;
+        assert cart.get("itemB") == 2;
+        assert "1".equals(conn.hget("cart:" + session, "itemA"));
+
+        cart.flush();
+        System.out.println("After the flush Redis has: " + conn.hgetAll("cart:" + session));
+        assert conn.hget("cart:" + session, "itemA") == null;
+        assert "2".equals(conn.hget("cart:" + session, "itemB"));
+        conn.del("cart:" + session);
+    }
+
+    /**
+     * һжԹﳵִжƷ޸ģСڵ0ƷӹﳵƳ
+     * ͬһȡ޸֮Ĺﳵ
+     *
+     * @param conn
+     * @param session
+     * @param changes Ʒӳ
+     * @return ޸֮Ĺﳵ
+     */
+    public Map<String,String> updateCart(Jedis conn, String session, Map<String,Integer> changes) {
+        String cart = "cart:" + session;
+        Map<String,String> updates = new HashMap<String,String>();
+
+        Transaction trans = conn.multi();
+        for (Map.Entry<String,Integer> entry : changes.entrySet()) {
+            if (entry.getValue() <= 0) {
+                //ӹﳵƳָƷ
+                trans.hdel(cart, entry.getKey());
+            } else {
+                updates.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+        if (updates.size() > 0) {
+            //һ仯Ʒ
+            trans.hmset(cart, updates);
+        }
+        Response<Map<String,String>> result = trans.hgetAll(cart);
+        trans.exec();
+        return result.get();
+    }
+
+    /**
+     * һʹõĹﳵͼ
+     * ޸ȻڽڣȡʱԼ޸ģ
+     * ʱflush()ȫ޸ͨupdateCartһдRedis
+     * ֻһ߳ʹã̰߳ȫ
+     *
+     * @author wsc
+     *
+     */
+    public class SessionCart {
+        private final Jedis conn;
+        private final String session;
+        private Map<String,String> snapshot;
+        private final Map<String,Integer> pending = new LinkedHashMap<String,Integer>();
+
+        public SessionCart(Jedis conn, String session) {
+            this.conn = conn;
+            this.session = session;
+        }
+
+        public void set(String item, int count) {
+            pending.put(item, count);
+        }
+
+        public void remove(String item) {
+            pending.put(item, 0);
+        }
+
+        /**
+         * ƷδдRedis޸ģڹﳵƷ0
+         */
+        public int get(String item) {
+            Integer count = pending.get(item);
+            if (count != null) {
+                return Math.max(count, 0);
+            }
+            String value = snapshot().get(item);
+            return value == null ? 0 : Integer.parseInt(value);
+        }
+
+        /**
+         * δдRedis޸ڵﳵ
+         */
+        public Map<String,Integer> items() {
+            Map<String,Integer> items = new LinkedHashMap<String,Integer>();
+            for (Map.Entry<String,String> entry : snapshot().entrySet()) {
+                items.put(entry.getKey(), Integer.parseInt(entry.getValue()));
+            }
+            for (Map.Entry<String,Integer> entry : pending.entrySet()) {
+                if (entry.getValue() <= 0) {
+                    items.remove(entry.getKey());
+                } else {
+                    items.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return items;
+        }
+
+        public boolean isDirty() {
+            return pending.size() > 0;
+        }
+
+        /**
+         * ѻ޸һдRedis÷صĹﳵˢͼ
+         */
+        public Map<String,String> flush() {
+            if (pending.size() > 0) {
+                snapshot = updateCart(conn, session, pending);
+                pending.clear();
+            }
+            return snapshot();
+        }
+
+        private Map<String,String> snapshot() {
+            if (snapshot == null) {
+                snapshot = conn.hgetAll("cart:" + session);
+            }
+            return snapshot;
+        }
+    }
+}
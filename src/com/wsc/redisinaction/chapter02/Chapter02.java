@@ -2,11 +2,14 @@ package com.wsc.redisinaction.chapter02;
 
 import com.google.gson.Gson;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Tuple;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Chapter02 {
     public static final void main(String[] args)
@@ -262,6 +265,18 @@ public class Chapter02 {
         conn.zadd("schedule:", System.currentTimeMillis() / 1000, rowId);
     }
 
+    //ɻкδдʵCacheWarmupǼ
+    private static final AtomicLong CACHE_HITS = new AtomicLong();
+    private static final AtomicLong CACHE_MISSES = new AtomicLong();
+
+    public static long getCacheHits() {
+        return CACHE_HITS.get();
+    }
+
+    public static long getCacheMisses() {
+        return CACHE_MISSES.get();
+    }
+
     /**
      * 
      * ҳ滺溯
@@ -286,6 +301,11 @@ public class Chapter02 {
         
         //Բұҳ
         String content = conn.get(pageKey);
+        if (content != null){
+            CACHE_HITS.incrementAndGet();
+        }else{
+            CACHE_MISSES.incrementAndGet();
+        }
 
         if (content == null && callback != null){
             //ҳ滹ûб棬ôҳ
@@ -458,11 +478,20 @@ public class Chapter02 {
         private Jedis conn;
         private int limit;
         private boolean quit;
+        private CartArchiver archiver;
 
         public CleanFullSessionsThread(int limit) {
+            this(limit, null);
+        }
+
+        /**
+         * archiverΪʱɾĹﳵȽ鵵첽д鵵ļ
+         */
+        public CleanFullSessionsThread(int limit, CartArchiver archiver) {
             this.conn = new Jedis("localhost");
             this.conn.select(15);
             this.limit = limit;
+            this.archiver = archiver;
         }
 
         public void quit() {
@@ -498,12 +527,35 @@ public class Chapter02 {
                     sessionKeys.add("cart:" + sess);
                 }
 
+                if (archiver != null) {
+                    archiveCarts(sessions);
+                }
+
                 //ƳɵЩ
                 conn.del(sessionKeys.toArray(new String[sessionKeys.size()]));
                 conn.hdel("login:", sessions);
                 conn.zrem("recent:", sessions);
             }
         }
+
+        /**
+         * ͨһˮȡҪɾĹﳵ鵵鵵
+         */
+        private void archiveCarts(String[] sessions) {
+            Pipeline pipe = conn.pipelined();
+            List<Response<Map<String,String>>> carts = new ArrayList<Response<Map<String,String>>>();
+            for (String sess : sessions) {
+                carts.add(pipe.hgetAll("cart:" + sess));
+            }
+            pipe.sync();
+
+            for (int i = 0; i < sessions.length; i++) {
+                Map<String,String> cart = carts.get(i).get();
+                if (cart != null && cart.size() > 0) {
+                    archiver.archive(sessions[i], cart);
+                }
+            }
+        }
     }
 
     /**
@@ -576,12 +628,9 @@ public class Chapter02 {
     }
 
     public static class Inventory {
-        @SuppressWarnings("unused")
-		private String id;
-        @SuppressWarnings("unused")
-		private String data;
-        @SuppressWarnings("unused")
-		private long time;
+        private String id;
+        private String data;
+        private long time;
 
         private Inventory (String id) {
             this.id = id;
@@ -589,8 +638,26 @@ public class Chapter02 {
             this.time = System.currentTimeMillis() / 1000;
         }
 
+        public Inventory (String id, String data, long time) {
+            this.id = id;
+            this.data = data;
+            this.time = time;
+        }
+
         public static Inventory get(String id) {
             return new Inventory(id);
         }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public long getTime() {
+            return time;
+        }
     }
 }
@@ -0,0 +1,467 @@
+package com.wsc.redisinaction.chapter02;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import com.wsc.redisinaction.util.LuaScript;
+import com.wsc.redisinaction.util.RedisInfo;
+
+/**
+ * յĻỰ洢֡
+ *
+ * ԭвһỰɢlogin:һֶΡrecent:һԱ
+ * viewed:<token>򼯺Լcart:<token>ɢ棻
+ * ղְһỰȫݷŽһsession:<token>ɢУ
+ *   user        ѵ¼û
+ *   v:<item>    Ʒʱ䣬ౣ25
+ *   c:<item>    ﳵеƷ
+ * ֵֶֶСRedisʹziplistȽձ뱣ɢС
+ * recent:Ȼֵʱ䣬߳ʹá
+ *
+ * @author wsc
+ *
+ */
+public class CompactSessions {
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        CompactSessions sessions = new CompactSessions();
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        sessions.testCompactSessions(conn);
+        sessions.testMigrateSessions(conn);
+
+        //磺1000000 10000000
+        for (String count : args) {
+            sessions.benchmarkLayouts(conn, Integer.parseInt(count));
+        }
+    }
+
+    public void testCompactSessions(Jedis conn)
+        throws InterruptedException
+    {
+        System.out.println("\n----- testCompactSessions -----");
+        String token = UUID.randomUUID().toString();
+
+        for (int i = 0; i < 30; i++) {
+            updateToken(conn, token, "username", "item" + i);
+        }
+        addToCart(conn, token, "itemY", 3);
+        System.out.println("What username do we get when we look-up that token? " + checkToken(conn, token));
+        assert "username".equals(checkToken(conn, token));
+        System.out.println("Viewed items are capped: " + getViewed(conn, token).size());
+        assert getViewed(conn, token).size() == 25;
+        assert "3".equals(getCart(conn, token).get("itemY"));
+        System.out.println("The session hash is stored as: " + conn.objectEncoding(sessionKey(token)));
+
+        CleanCompactSessionsThread thread = new CleanCompactSessionsThread(0);
+        thread.start();
+        Thread.sleep(1000);
+        thread.quit();
+        Thread.sleep(2000);
+        if (thread.isAlive()){
+            throw new RuntimeException("The clean sessions thread is still alive?!?");
+        }
+        assert checkToken(conn, token) == null;
+        assert !conn.exists(sessionKey(token));
+    }
+
+    public void testMigrateSessions(Jedis conn) {
+        System.out.println("\n----- testMigrateSessions -----");
+        Chapter02 chapter02 = new Chapter02();
+        String token = UUID.randomUUID().toString();
+        chapter02.updateToken(conn, token, "username", "itemX");
+        chapter02.addToCart(conn, token, "itemY", 3);
+
+        System.out.println("Let's move a session to the compact layout and back");
+        boolean moved = migrateToCompact(conn, token);
+        assert moved;
+        assert "username".equals(checkToken(conn, token));
+        assert chapter02.checkToken(conn, token) == null;
+        assert getViewed(conn, token).contains("itemX");
+
+        //ɵĴдԭв֣ٴǨʱϲᶪղеĹﳵ
+        chapter02.updateToken(conn, token, "username", "itemW");
+        moved = migrateToCompact(conn, token);
+        assert moved;
+        assert "3".equals(getCart(conn, token).get("itemY"));
+        List<String> viewed = getViewed(conn, token);
+        assert viewed.contains("itemX") && viewed.contains("itemW");
+
+        moved = migrateToLegacy(conn, token);
+        assert moved;
+        assert "username".equals(chapter02.checkToken(conn, token));
+        assert "3".equals(conn.hget("cart:" + token, "itemY"));
+        assert !conn.exists(sessionKey(token));
+
+        System.out.println("Migrated sessions: " + migrateAll(conn, true, 100));
+        assert "username".equals(checkToken(conn, token));
+        migrateAll(conn, false, 100);
+    }
+
+    public static final int VIEWED_LIMIT = 25;
+
+    public String sessionKey(String token) {
+        return "session:" + token;
+    }
+
+    /**
+     * »ỰChapter02.updateTokenЧͬ
+     * ¼ûʱ䡢Ʒ25ԼƷ
+     */
+    private static final LuaScript UPDATE_TOKEN = new LuaScript(
+        "redis.call('hset', KEYS[1], 'user', ARGV[2]) " +
+        "redis.call('zadd', KEYS[2], ARGV[3], ARGV[1]) " +
+        "if ARGV[4] ~= '' then " +
+        "  redis.call('hset', KEYS[1], 'v:' .. ARGV[4], ARGV[3]) " +
+        "  redis.call('zincrby', KEYS[3], -1, ARGV[4]) " +
+        //ֶuser25Ʒʱܳޣ
+        "  if redis.call('hlen', KEYS[1]) > tonumber(ARGV[5]) + 1 then " +
+        "    local fields = redis.call('hgetall', KEYS[1]) " +
+        "    local viewed = {} " +
+        "    for i = 1, #fields, 2 do " +
+        "      if string.sub(fields[i], 1, 2) == 'v:' then " +
+        "        table.insert(viewed, {fields[i], tonumber(fields[i + 1])}) " +
+        "      end " +
+        "    end " +
+        "    if #viewed > tonumber(ARGV[5]) then " +
+        "      table.sort(viewed, function(a, b) return a[2] > b[2] end) " +
+        "      for i = tonumber(ARGV[5]) + 1, #viewed do " +
+        "        redis.call('hdel', KEYS[1], viewed[i][1]) " +
+        "      end " +
+        "    end " +
+        "  end " +
+        "end " +
+        "return 1");
+
+    /**
+     * ѻỰԭвƶղ֣ȡдһűɣ
+     * Ǩڼ䵽updateTokenaddToCartᶪʧ
+     * ղѾʱϲǸǣʱȡһﳵеƷղֵ
+     * ϲ󳬳޵¼һupdateTokenü
+     * KEYS: session:<token>, login:, viewed:<token>, cart:<token>ARGV: token
+     */
+    private static final LuaScript MIGRATE_TO_COMPACT = new LuaScript(
+        "local user = redis.call('hget', KEYS[2], ARGV[1]) " +
+        "if not user then return 0 end " +
+        "local viewed = redis.call('zrange', KEYS[3], 0, -1, 'WITHSCORES') " +
+        "local cart = redis.call('hgetall', KEYS[4]) " +
+        "redis.call('hset', KEYS[1], 'user', user) " +
+        "for i = 1, #viewed, 2 do " +
+        "  local field = 'v:' .. viewed[i] " +
+        "  local seen = redis.call('hget', KEYS[1], field) " +
+        "  if not seen or tonumber(seen) < tonumber(viewed[i + 1]) then " +
+        "    redis.call('hset', KEYS[1], field, viewed[i + 1]) " +
+        "  end " +
+        "end " +
+        "for i = 1, #cart, 2 do " +
+        "  redis.call('hsetnx', KEYS[1], 'c:' .. cart[i], cart[i + 1]) " +
+        "end " +
+        "redis.call('del', KEYS[3], KEYS[4]) " +
+        "redis.call('hdel', KEYS[2], ARGV[1]) " +
+        "return 1");
+
+    /**
+     * ѻỰӽղƶԭв֣MIGRATE_TO_COMPACTͬͬϲе
+     */
+    private static final LuaScript MIGRATE_TO_LEGACY = new LuaScript(
+        "local fields = redis.call('hgetall', KEYS[1]) " +
+        "local user = nil " +
+        "for i = 1, #fields, 2 do " +
+        "  if fields[i] == 'user' then user = fields[i + 1] end " +
+        "end " +
+        "if not user then return 0 end " +
+        "redis.call('hset', KEYS[2], ARGV[1], user) " +
+        "for i = 1, #fields, 2 do " +
+        "  local prefix = string.sub(fields[i], 1, 2) " +
+        "  local item = string.sub(fields[i], 3) " +
+        "  if prefix == 'c:' then " +
+        "    redis.call('hsetnx', KEYS[4], item, fields[i + 1]) " +
+        "  elseif prefix == 'v:' then " +
+        "    local seen = redis.call('zscore', KEYS[3], item) " +
+        "    if not seen or tonumber(seen) < tonumber(fields[i + 1]) then " +
+        "      redis.call('zadd', KEYS[3], fields[i + 1], item) " +
+        "    end " +
+        "  end " +
+        "end " +
+        "redis.call('del', KEYS[1]) " +
+        "return 1");
+
+    /**
+     * (ֵ, Ա)˳α֮ȡһҳrecent:سԱͷֵеб
+     * ֵͬĳԱֽ˳УαڷֵͬĳԱ֮ҲǾȷ
+     * KEYS: recent:ARGV: αķֵַʾͷʼ, αĳԱ, 
+     */
+    private static final LuaScript RECENT_PAGE = new LuaScript(
+        "local function before(a, b) " +
+        "  for i = 1, math.min(#a, #b) do " +
+        "    local x, y = string.byte(a, i), string.byte(b, i) " +
+        "    if x ~= y then return x < y end " +
+        "  end " +
+        "  return #a < #b " +
+        "end " +
+        "local lo, hi = 0, redis.call('zcard', KEYS[1]) " +
+        "if ARGV[1] ~= '' then " +
+        "  local score = tonumber(ARGV[1]) " +
+        "  while lo < hi do " +
+        "    local mid = math.floor((lo + hi) / 2) " +
+        "    local entry = redis.call('zrange', KEYS[1], mid, mid, 'WITHSCORES') " +
+        "    local s = tonumber(entry[2]) " +
+        "    if s < score or (s == score and not before(ARGV[2], entry[1])) then " +
+        "      lo = mid + 1 " +
+        "    else " +
+        "      hi = mid " +
+        "    end " +
+        "  end " +
+        "end " +
+        "return redis.call('zrange', KEYS[1], lo, lo + tonumber(ARGV[3]) - 1, 'WITHSCORES')");
+
+    public String checkToken(Jedis conn, String token) {
+        return conn.hget(sessionKey(token), "user");
+    }
+
+    public void updateToken(Jedis conn, String token, String user, String item) {
+        long timestamp = System.currentTimeMillis() / 1000;
+        String[] args = new String[]{
+            sessionKey(token), "recent:", "viewed:",
+            token, user, String.valueOf(timestamp), item != null ? item : "",
+            String.valueOf(VIEWED_LIMIT)};
+
+        UPDATE_TOKEN.call(conn, 3, args);
+    }
+
+    public void addToCart(Jedis conn, String session, String item, int count) {
+        if (count <= 0) {
+            conn.hdel(sessionKey(session), "c:" + item);
+        } else {
+            conn.hset(sessionKey(session), "c:" + item, String.valueOf(count));
+        }
+    }
+
+    public Map<String,String> getCart(Jedis conn, String session) {
+        return fieldsWithPrefix(conn.hgetAll(sessionKey(session)), "c:");
+    }
+
+    /**
+     * Ʒʱµ
+     */
+    public List<String> getViewed(Jedis conn, String token) {
+        final Map<String,String> viewed = fieldsWithPrefix(conn.hgetAll(sessionKey(token)), "v:");
+        List<String> items = new ArrayList<String>(viewed.keySet());
+        Collections.sort(items, new Comparator<String>(){
+            public int compare(String a, String b){
+                return Long.valueOf(viewed.get(b)).compareTo(Long.valueOf(viewed.get(a)));
+            }
+        });
+        return items;
+    }
+
+    private Map<String,String> fieldsWithPrefix(Map<String,String> fields, String prefix) {
+        Map<String,String> result = new HashMap<String,String>();
+        for (Map.Entry<String,String> entry : fields.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * һỰԭвǨƵղ
+     *
+     * @param conn
+     * @param token
+     * @return Ựʱfalse
+     */
+    public boolean migrateToCompact(Jedis conn, String token) {
+        return (Long)MIGRATE_TO_COMPACT.call(
+            conn, 4, sessionKey(token), "login:", "viewed:" + token, "cart:" + token, token) == 1;
+    }
+
+    /**
+     * һỰӽղǨƻԭв
+     *
+     * @param conn
+     * @param token
+     * @return Ựʱfalse
+     */
+    public boolean migrateToLegacy(Jedis conn, String token) {
+        return (Long)MIGRATE_TO_LEGACY.call(
+            conn, 4, sessionKey(token), "login:", "viewed:" + token, "cart:" + token, token) == 1;
+    }
+
+    /**
+     * recent:е˳ҳǨȫỰ
+     * ǨڼupdateTokenıֵ̻߳ɾƣҳỰ
+     * һƵ(ֵ, Ա)ΪαꣻֵƿǨһΣǨݵȵ
+     *
+     * @param conn
+     * @param toCompact trueǨƵղ֣falseǨƻԭв
+     * @param pageSize
+     * @return ǨƵĻỰ
+     */
+    public long migrateAll(Jedis conn, boolean toCompact, int pageSize) {
+        long migrated = 0;
+        String score = "";
+        String last = "";
+        while (true) {
+            @SuppressWarnings("unchecked")
+            List<String> page = (List<String>)RECENT_PAGE.call(
+                conn, 1, "recent:", score, last, String.valueOf(pageSize));
+            for (int i = 0; i < page.size(); i += 2) {
+                String token = page.get(i);
+                if (toCompact ? migrateToCompact(conn, token) : migrateToLegacy(conn, token)) {
+                    migrated++;
+                }
+            }
+            if (page.size() < 2 * pageSize) {
+                break;
+            }
+            last = page.get(page.size() - 2);
+            score = page.get(page.size() - 1);
+        }
+        return migrated;
+    }
+
+    /**
+     * Աֲֵڴռúд
+     * ÿỰһû5ƷԼ2ﳵƷ
+     * ͨˮдsessionsỰȡused_memoryȻɾЩỰ
+     * ʹøԵupdateToken
+     * ҪרõݿУ1000ỰҪGBڴ
+     *
+     * @param conn
+     * @param sessions
+     */
+    public void benchmarkLayouts(Jedis conn, int sessions) {
+        System.out.println("\n----- benchmarkLayouts (" + sessions + " sessions) -----");
+        Chapter02 chapter02 = new Chapter02();
+        long now = System.currentTimeMillis() / 1000;
+
+        for (boolean compact : new boolean[]{false, true}) {
+            long before = RedisInfo.usedMemory(conn);
+            long keysBefore = conn.dbSize();
+            long start = System.nanoTime();
+            Pipeline pipe = conn.pipelined();
+            for (int i = 0; i < sessions; i++) {
+                String token = "bench-" + i;
+                if (compact) {
+                    Map<String,String> fields = new HashMap<String,String>();
+                    fields.put("user", "user" + i);
+                    for (int v = 0; v < 5; v++) {
+                        fields.put("v:item" + ((i + v) % 1000), String.valueOf(now + v));
+                    }
+                    fields.put("c:item" + (i % 1000), "1");
+                    fields.put("c:item" + ((i + 1) % 1000), "2");
+                    pipe.hmset(sessionKey(token), fields);
+                } else {
+                    pipe.hset("login:", token, "user" + i);
+                    for (int v = 0; v < 5; v++) {
+                        pipe.zadd("viewed:" + token, now + v, "item" + ((i + v) % 1000));
+                    }
+                    pipe.hset("cart:" + token, "item" + (i % 1000), "1");
+                    pipe.hset("cart:" + token, "item" + ((i + 1) % 1000), "2");
+                }
+                pipe.zadd("recent:", now, token);
+                if (i % 1000 == 999) {
+                    pipe.sync();
+                    pipe = conn.pipelined();
+                }
+            }
+            pipe.sync();
+            double loadSeconds = (System.nanoTime() - start) / 1000000000.0;
+            long memory = RedisInfo.usedMemory(conn) - before;
+            long keys = conn.dbSize() - keysBefore;
+
+            int ops = Math.min(sessions, 10000);
+            start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                if (compact) {
+                    updateToken(conn, "bench-" + i, "user" + i, "item" + (i % 1000));
+                } else {
+                    chapter02.updateToken(conn, "bench-" + i, "user" + i, "item" + (i % 1000));
+                }
+            }
+            double updateSeconds = (System.nanoTime() - start) / 1000000000.0;
+
+            System.out.println(String.format(
+                "  %-7s keys=%-10d memory=%8.1fMB (%6.1f bytes/session)  load %9.0f sessions/s  updateToken %8.0f ops/s",
+                compact ? "compact" : "legacy", keys, memory / 1048576.0, memory / (double)sessions,
+                sessions / loadSeconds, ops / updateSeconds));
+
+            pipe = conn.pipelined();
+            for (int i = 0; i < sessions; i++) {
+                String token = "bench-" + i;
+                pipe.del(sessionKey(token), "viewed:" + token, "cart:" + token);
+                pipe.hdel("login:", token);
+                pipe.zrem("recent:", token);
+                if (i % 1000 == 999) {
+                    pipe.sync();
+                    pipe = conn.pipelined();
+                }
+            }
+            pipe.sync();
+        }
+    }
+
+    /**
+     * ղֵĻỰ̣߳ÿỰֻҪɾһ
+     *
+     * @author wsc
+     *
+     */
+    public class CleanCompactSessionsThread
+        extends Thread
+    {
+        private Jedis conn;
+        private int limit;
+        private boolean quit;
+
+        public CleanCompactSessionsThread(int limit) {
+            this.conn = new Jedis("localhost");
+            this.conn.select(15);
+            this.limit = limit;
+        }
+
+        public void quit() {
+            quit = true;
+        }
+
+        public void run() {
+            while (!quit) {
+                long size = conn.zcard("recent:");
+                if (size <= limit){
+                    try {
+                        sleep(1000);
+                    }catch(InterruptedException ie){
+                        Thread.currentThread().interrupt();
+                    }
+                    continue;
+                }
+
+                long endIndex = Math.min(size - limit, 100);
+                Set<String> tokenSet = conn.zrange("recent:", 0, endIndex - 1);
+                String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
+
+                String[] sessionKeys = new String[tokens.length];
+                for (int i = 0; i < tokens.length; i++) {
+                    sessionKeys[i] = sessionKey(tokens[i]);
+                }
+
+                conn.del(sessionKeys);
+                conn.zrem("recent:", tokens);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.wsc.redisinaction.chapter02;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.Gson;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+import com.wsc.redisinaction.chapter02.Chapter02.Inventory;
+
+/**
+ * inv:<rowId>ֵĶƱ
+ *
+ * ʽ1ֽħ0xB11ֽڸʽ汾֮Ϊiddatatime
+ * ַԱ䳤ʾĳȼUTF-8ֽڴ洢0ʾnullΪֽ1
+ * timeԱ䳤洢
+ * ɵĻֵGsonɵJSON'{'ͷdecodeԶʶ𲢰JSON
+ *
+ * @author wsc
+ *
+ */
+public class RowCodec {
+
+    public static void main(String[] args) {
+        new RowCodec().run();
+    }
+
+    public void run() {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testRowCodec(conn);
+        testBenchmarkRowCodec();
+    }
+
+    public void testRowCodec(Jedis conn) {
+        System.out.println("\n----- testRowCodec -----");
+        Inventory row = new Inventory("itemX", "data to cache...", 1234567890L);
+        byte[] encoded = encode(row);
+        String json = new Gson().toJson(row);
+        System.out.println("Binary row is " + encoded.length + " bytes, JSON row is " + json.length());
+        assert encoded.length < json.length();
+
+        Inventory decoded = decode(encoded);
+        assert "itemX".equals(decoded.getId());
+        assert "data to cache...".equals(decoded.getData());
+        assert decoded.getTime() == 1234567890L;
+
+        System.out.println("Legacy JSON rows can still be read");
+        conn.set("inv:itemX", json);
+        Inventory legacy = readRow(conn, "itemX");
+        assert legacy != null && legacy.getTime() == 1234567890L;
+
+        conn.set(SafeEncoder.encode("inv:itemX"), encoded);
+        Inventory binary = readRow(conn, "itemX");
+        assert binary != null && "itemX".equals(binary.getId());
+        conn.del("inv:itemX");
+        assert readRow(conn, "itemX") == null;
+
+        //ضϵֵÿһλöΪݴ󣬶Խ
+        for (int length = 2; length < encoded.length; length++) {
+            boolean rejected = false;
+            try {
+                decode(Arrays.copyOf(encoded, length));
+            }catch(IllegalArgumentException iae){
+                rejected = true;
+            }
+            assert rejected;
+        }
+    }
+
+    public void testBenchmarkRowCodec() {
+        System.out.println("\n----- testBenchmarkRowCodec -----");
+        List<Inventory> rows = new ArrayList<Inventory>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(new Inventory("item" + i, "data to cache for row " + i, 1400000000L + i));
+        }
+        Gson gson = new Gson();
+
+        //Ԥֱ뷽ʽJITɱ
+        for (int pass = 0; pass < 20; pass++) {
+            for (Inventory row : rows) {
+                decode(encode(row));
+                gson.fromJson(gson.toJson(row), Inventory.class);
+            }
+        }
+
+        long binaryBytes = 0;
+        long jsonBytes = 0;
+        for (Inventory row : rows) {
+            binaryBytes += encode(row).length;
+            jsonBytes += SafeEncoder.encode(gson.toJson(row)).length;
+        }
+
+        int passes = 50;
+        long start = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (Inventory row : rows) {
+                encode(row);
+            }
+        }
+        double binaryEncode = rate(rows.size() * passes, start);
+
+        start = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (Inventory row : rows) {
+                gson.toJson(row);
+            }
+        }
+        double jsonEncode = rate(rows.size() * passes, start);
+
+        List<byte[]> binary = new ArrayList<byte[]>();
+        List<String> json = new ArrayList<String>();
+        for (Inventory row : rows) {
+            binary.add(encode(row));
+            json.add(gson.toJson(row));
+        }
+
+        start = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (byte[] value : binary) {
+                decode(value);
+            }
+        }
+        double binaryDecode = rate(rows.size() * passes, start);
+
+        start = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (String value : json) {
+                gson.fromJson(value, Inventory.class);
+            }
+        }
+        double jsonDecode = rate(rows.size() * passes, start);
+
+        System.out.println(String.format(
+            "  binary: %5.1f bytes/row  encode %10.0f rows/s  decode %10.0f rows/s",
+            binaryBytes / (double)rows.size(), binaryEncode, binaryDecode));
+        System.out.println(String.format(
+            "  gson:   %5.1f bytes/row  encode %10.0f rows/s  decode %10.0f rows/s",
+            jsonBytes / (double)rows.size(), jsonEncode, jsonDecode));
+        assert binaryBytes < jsonBytes;
+    }
+
+    private double rate(int count, long start) {
+        return count / ((System.nanoTime() - start) / 1000000000.0);
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final byte MAGIC = (byte)0xB1;
+    public static final byte VERSION = 1;
+
+    /**
+     * ȡinv:<rowId>룬治ʱnull
+     *
+     * @param conn
+     * @param rowId
+     * @return
+     */
+    public static Inventory readRow(Jedis conn, String rowId) {
+        byte[] value = conn.get(SafeEncoder.encode("inv:" + rowId));
+        return value == null ? null : decode(value);
+    }
+
+    public static byte[] encode(Inventory row) {
+        Writer writer = new Writer(32);
+        writer.bytes[writer.length++] = MAGIC;
+        writer.bytes[writer.length++] = VERSION;
+        writer.writeString(row.getId());
+        writer.writeString(row.getData());
+        writer.writeVarLong(row.getTime());
+        return writer.toByteArray();
+    }
+
+    public static Inventory decode(byte[] value) {
+        if (value.length > 0 && value[0] == '{') {
+            //ݾɵJSONʽ
+            return new Gson().fromJson(new String(value, UTF8), Inventory.class);
+        }
+        if (value.length < 2 || value[0] != MAGIC) {
+            throw new IllegalArgumentException("Not an encoded row");
+        }
+        if (value[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported row version: " + value[1]);
+        }
+
+        Reader reader = new Reader(value, 2);
+        String id = reader.readString();
+        String data = reader.readString();
+        long time = reader.readVarLong();
+        return new Inventory(id, data, time);
+    }
+
+    private static class Writer {
+        private byte[] bytes;
+        private int length;
+
+        private Writer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte)value;
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] encoded = value.getBytes(UTF8);
+            writeVarLong(encoded.length + 1);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        private Reader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= bytes.length) {
+                    throw new IllegalArgumentException("Truncated varint at " + position);
+                }
+                byte b = bytes[position++];
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        private String readString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            if (length < 0 || length - 1 > bytes.length - position) {
+                throw new IllegalArgumentException("String length " + (length - 1) + " exceeds remaining "
+                    + (bytes.length - position) + " bytes at " + position);
+            }
+            String value = new String(bytes, position, (int)length - 1, UTF8);
+            position += (int)length - 1;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.wsc.redisinaction.chapter02;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.wsc.redisinaction.chapter02.Chapter02.Inventory;
+
+/**
+ * еĶȡӿڣлͨݿжȡҪС
+ * ʵӦһβѯȡȫУҲвڷؽ
+ *
+ * @author wsc
+ *
+ */
+public interface RowLoader {
+    public Map<String,Inventory> loadAll(Collection<String> rowIds);
+}
@@ -0,0 +1,181 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import com.wsc.redisinaction.util.TransactionRunner;
+
+/**
+ * һϼܶƷ
+ *
+ * Chapter04.listItemÿƷҪһWATCH/MULTI/EXECһϼܼټƷʱ
+ * ͱֹĻᶼƷ
+ * listItemsֻһҵİˮһԼƷǷڰ棬
+ * ȻͬһадڵƷŵгϣƷжټÿγԶֻй̶ļ
+ *
+ * @author wsc
+ *
+ */
+public class BatchListing {
+
+    public static void main(String[] args) {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        BatchListing listing = new BatchListing();
+        listing.testListItems(conn);
+        listing.benchmarkListItems(conn, 5000);
+    }
+
+    /**
+     * ÿƷϼܽ
+     */
+    public enum ListResult {
+        /** Ѿŵг */
+        LISTED,
+        /** ҵİûƷ */
+        NOT_IN_INVENTORY,
+        /** һֱڱ仯Ȼû */
+        TIMED_OUT
+    }
+
+    private final TransactionRunner runner = new TransactionRunner();
+
+    public void testListItems(Jedis conn) {
+        System.out.println("\n----- testListItems -----");
+        Map<String,Double> prices = new HashMap<String,Double>();
+        for (int i = 0; i < 10; i++) {
+            prices.put("item" + i, (double)(i + 1));
+            if (i % 2 == 0) {
+                conn.sadd("inventory:userX", "item" + i);
+            }
+        }
+
+        Map<String,ListResult> results = listItems(conn, "userX", prices);
+        System.out.println("Listing results: " + results);
+        for (int i = 0; i < 10; i++) {
+            ListResult expected = i % 2 == 0 ? ListResult.LISTED : ListResult.NOT_IN_INVENTORY;
+            assert results.get("item" + i) == expected;
+        }
+        assert conn.zcard("market:") == 5;
+        assert conn.zscore("market:", "item4.userX") == 5;
+        assert conn.scard("inventory:userX") == 0;
+
+        conn.del("market:", "market:seller:userX", "inventory:userX");
+    }
+
+    /**
+     * Ƚϼܺϼܵĺʱ
+     *
+     * @param conn
+     * @param count
+     */
+    public void benchmarkListItems(Jedis conn, int count) {
+        System.out.println("\n----- benchmarkListItems -----");
+        Chapter04 ch04 = new Chapter04();
+        Map<String,Double> prices = new LinkedHashMap<String,Double>();
+        for (int i = 0; i < count; i++) {
+            prices.put("item" + i, 10.0);
+        }
+
+        stock(conn, "userX", prices);
+        long start = System.nanoTime();
+        for (Map.Entry<String,Double> entry : prices.entrySet()) {
+            ch04.listItem(conn, entry.getKey(), "userX", entry.getValue());
+        }
+        double single = (System.nanoTime() - start) / 1000000.0;
+        conn.del("market:", "market:seller:userX");
+
+        stock(conn, "userX", prices);
+        start = System.nanoTime();
+        listItems(conn, "userX", prices);
+        double batch = (System.nanoTime() - start) / 1000000.0;
+        conn.del("market:", "market:seller:userX", "inventory:userX");
+
+        System.out.println(String.format("listItem x %d: %.1f ms, listItems: %.1f ms", count, single, batch));
+    }
+
+    private void stock(Jedis conn, String sellerId, Map<String,Double> prices) {
+        Pipeline pipe = conn.pipelined();
+        for (String itemId : prices.keySet()) {
+            pipe.sadd("inventory:" + sellerId, itemId);
+        }
+        pipe.sync();
+    }
+
+    /**
+     * ҰеĶƷŵгϣдڵƷͬһϼ
+     *
+     * @param conn
+     * @param sellerId
+     * @param prices ƷID۸ӳ
+     * @return ÿƷϼܽ
+     */
+    public Map<String,ListResult> listItems(Jedis conn, final String sellerId, final Map<String,Double> prices) {
+        final String inventory = "inventory:" + sellerId;
+        final String sellerIndex = "market:seller:" + sellerId;
+
+        //ҵİ仯ʱ¼
+        return runner.run(conn, "chapter04.listItems", 5000, new TransactionRunner.Operation<Map<String,ListResult>>() {
+            private final Set<String> present = new HashSet<String>();
+
+            public boolean read(Jedis conn) {
+                //һƷǷڰ
+                Pipeline pipe = conn.pipelined();
+                Map<String,Response<Boolean>> members = new HashMap<String,Response<Boolean>>();
+                for (String itemId : prices.keySet()) {
+                    members.put(itemId, pipe.sismember(inventory, itemId));
+                }
+                pipe.sync();
+
+                present.clear();
+                for (Map.Entry<String,Response<Boolean>> entry : members.entrySet()) {
+                    if (entry.getValue().get()) {
+                        present.add(entry.getKey());
+                    }
+                }
+                return present.size() > 0;
+            }
+
+            public void write(Transaction trans) {
+                for (String itemId : present) {
+                    trans.zadd("market:", prices.get(itemId), itemId + '.' + sellerId);
+                    trans.zadd(sellerIndex, prices.get(itemId), itemId + '.' + sellerId);
+                    trans.srem(inventory, itemId);
+                }
+            }
+
+            public Map<String,ListResult> done(List<Object> results) {
+                return collect(ListResult.LISTED);
+            }
+
+            public Map<String,ListResult> rejected() {
+                return collect(ListResult.LISTED);
+            }
+
+            public Map<String,ListResult> timedOut() {
+                return collect(ListResult.TIMED_OUT);
+            }
+
+            /**
+             * prices˳ÿƷĽдڵƷʹøĽ
+             */
+            private Map<String,ListResult> collect(ListResult result) {
+                Map<String,ListResult> results = new LinkedHashMap<String,ListResult>();
+                for (String itemId : prices.keySet()) {
+                    results.put(itemId, present.contains(itemId) ? result : ListResult.NOT_IN_INVENTORY);
+                }
+                return results;
+            }
+        }, inventory);
+    }
+}
@@ -25,6 +25,7 @@ public class BenchmarkUpdateToken {
     /**
      *ܲԺڸʱظִ updateTokenupdateTokenPipeline 
      *Ȼ㱻Եķִ˶ٴ
+     *Ԥȡ̺ӳٷֲĲԼ com.wsc.redisinaction.benchmark.BenchmarkRunner
      *
      *page 84
      *嵥 4-9
@@ -48,23 +49,24 @@ public class BenchmarkUpdateToken {
             	
             	//üԼԽ
                 int count = 0;
-                long start = System.currentTimeMillis();
-                long end = start + (duration * 1000);
-                while (System.currentTimeMillis() < end){
+                long start = System.nanoTime();
+                long end = start + duration * 1000000000L;
+                while (System.nanoTime() < end){
                     count++;
                     //еһ
                     method.invoke(this, conn, "token", "user", "item");
                 }
                 
                 //㷽ִʱ
-                long delta = System.currentTimeMillis() - start;
+                //Ϊλĸ˲һĲ֣Ҳֳ
+                double seconds = (System.nanoTime() - start) / 1000000000.0;
                 
                 //ӡԽ
                 System.out.println(
                         method.getName() + ' ' +
                         count + ' ' +
-                        (delta / 1000) + ' ' +
-                        (count / (delta / 1000)));
+                        String.format("%.3f", seconds) + ' ' +
+                        String.format("%.1f", count / seconds));
             }
         }catch(Exception e){
             throw new RuntimeException(e);
@@ -129,7 +131,7 @@ public class BenchmarkUpdateToken {
             pipe.zincrby("viewed:", -1, item);
         }
         
-        //ִЩˮ߰
-        pipe.exec();
+        //ִЩˮ߰ȡȫظ
+        pipe.sync();
     }
 }
@@ -10,7 +10,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.wsc.redisinaction.util.TransactionRunner;
+
 public class Chapter04 {
+    //listItempurchaseItemʹõִֹ˱Բͳֹ
+    private final TransactionRunner runner = new TransactionRunner();
+
     public static final void main(String[] args) {
         new Chapter04().run();
     }
@@ -111,39 +116,35 @@ public class Chapter04 {
      * @return
      */
     public boolean listItem(
-            Jedis conn, String itemId, String sellerId, double price) {
+            Jedis conn, final String itemId, String sellerId, final double price) {
 
-        String inventory = "inventory:" + sellerId;
-        String item = itemId + '.' + sellerId;
-        long end = System.currentTimeMillis() + 5000;
+        final String inventory = "inventory:" + sellerId;
+        final String item = itemId + '.' + sellerId;
+        final String sellerIndex = "market:seller:" + sellerId;
 
-        while (System.currentTimeMillis() < end) {
-        	//ûı仯
-            conn.watch(inventory);
-            
-            //ûǷȻнҪ۵Ʒ
-            if (!conn.sismember(inventory, itemId)){
-                //ָƷû棬ôֹͣ԰ļӲһֵ
-            	conn.unwatch();
-                return false;
+        //ûı仯ӵļ仯ʱrunner˱֮ԣ5
+        return runner.run(conn, "chapter04.listItem", 5000, new TransactionRunner.Operation<Boolean>() {
+            public boolean read(Jedis conn) {
+                //ûǷȻнҪ۵Ʒ
+                //ָƷû棬ôֹͣ԰ļӲfalse
+                return conn.sismember(inventory, itemId);
             }
 
-            //ѱ۵ƷӵƷг
-            Transaction trans = conn.multi();
-            trans.zadd("market:", price, item);
-            trans.srem(inventory, itemId);
-            
-            //ִexecûwatchError쳣
-            //ô˵ѾִгɹҶ԰ļҲ
-            List<Object> results = trans.exec();
-            // null response indicates that the transaction was aborted due to
-            // the watched key changing.
-            if (results == null){
-                continue;
+            public void write(Transaction trans) {
+                //ѱ۵ƷӵƷг棬ͬʱ¼ҵ㰴г
+                trans.zadd("market:", price, item);
+                trans.zadd(sellerIndex, price, item);
+                trans.srem(inventory, itemId);
             }
-            return true;
-        }
-        return false;
+
+            public Boolean done(List<Object> results) {
+                return true;
+            }
+
+            public Boolean rejected() {
+                return false;
+            }
+        }, inventory);
     }
 
     /**
@@ -161,49 +162,64 @@ public class Chapter04 {
      * @return
      */
     public boolean purchaseItem(
-            Jedis conn, String buyerId, String itemId, String sellerId, double lprice) {
-
-        String buyer = "users:" + buyerId;
-        String seller = "users:" + sellerId;
-        String item = itemId + '.' + sellerId;
-        String inventory = "inventory:" + buyerId;
-        long end = System.currentTimeMillis() + 10000;
-
-        while (System.currentTimeMillis() < end){
-        	
-        	//ƷгԼҵĸϢм
-            conn.watch("market:", buyer);
-
-            //ҪƷļ۸Ƿ仯ԼǷ㹻ǮƷ
-            double price = conn.zscore("market:", item);
-            double funds = Double.parseDouble(conn.hget(buyer, "funds"));
-            if (price != lprice || price > funds){
-                conn.unwatch();
-                return false;
+            Jedis conn, String buyerId, final String itemId, String sellerId, final double lprice) {
+
+        final String buyer = "users:" + buyerId;
+        final String seller = "users:" + sellerId;
+        final String item = itemId + '.' + sellerId;
+        final String inventory = "inventory:" + buyerId;
+        final String sellerIndex = "market:seller:" + sellerId;
+
+        //ƷгԼҡҵĸϢмأʧʱԣ10
+        return runner.run(conn, "chapter04.purchaseItem", 10000, new TransactionRunner.Operation<Boolean>() {
+            private Double price;
+            private boolean sellerMigrated;
+
+            public boolean read(Jedis conn) {
+                //ҪƷļ۸Ƿ仯ԼǷ㹻ǮƷ
+                //ƷѾʱzscoreؿֵ
+                price = conn.zscore("market:", item);
+                //ʽѾǨƵfunds_minorûfundsֶ
+                String funds = conn.hget(buyer, "funds");
+                //ѾǨƵյǮɷּfunds_minor
+                sellerMigrated = FixedPointMarket.isMigrated(conn, seller);
+                return price != null && funds != null && price == lprice && price <= Double.parseDouble(funds);
             }
 
-            //ƣȽ֧ǮתƵңȻ󽫱Ʒƽ
-            Transaction trans = conn.multi();
-            trans.hincrBy(seller, "funds", (int)price);
-            trans.hincrBy(buyer, "funds", (int)-price);
-            trans.sadd(inventory, itemId);
-            trans.zrem("market:", item);
-            List<Object> results = trans.exec();
-            // null response indicates that the transaction was aborted due to
-            // the watched key changing.
-            //׵Ĺз⣬ôԣΪresultsΪմʧܣһֵ
-            if (results == null){
-                continue;
+            public void write(Transaction trans) {
+                //ƣȽ֧ǮתƵңȻ󽫱Ʒƽ
+                FixedPointMarket.credit(trans, seller, sellerMigrated, price.intValue());
+                trans.hincrBy(buyer, "funds", -price.intValue());
+                trans.sadd(inventory, itemId);
+                trans.zrem("market:", item);
+                trans.zrem(sellerIndex, item);
             }
-            return true;
-        }
 
-        return false;
+            public Boolean done(List<Object> results) {
+                return true;
+            }
+
+            public Boolean rejected() {
+                return false;
+            }
+        }, "market:", buyer, seller);
+    }
+
+    public TransactionRunner getRunner() {
+        return runner;
+    }
+
+    /**
+     * listItempurchaseItemΪӵļ仯ֹ
+     */
+    public long getWatchAborts() {
+        return runner.getAborts();
     }
 
     /**
      *ܲԺڸʱظִ updateTokenupdateTokenPipeline 
      *Ȼ㱻Եķִ˶ٴ
+     *Ԥȡ̺ӳٷֲĲԼ com.wsc.redisinaction.benchmark.BenchmarkRunner
      *
      *page 84
      *嵥 4-9
@@ -227,23 +243,24 @@ public class Chapter04 {
             	
             	//üԼԽ
                 int count = 0;
-                long start = System.currentTimeMillis();
-                long end = start + (duration * 1000);
-                while (System.currentTimeMillis() < end){
+                long start = System.nanoTime();
+                long end = start + duration * 1000000000L;
+                while (System.nanoTime() < end){
                     count++;
                     //еһ
                     method.invoke(this, conn, "token", "user", "item");
                 }
                 
                 //㷽ִʱ
-                long delta = System.currentTimeMillis() - start;
+                //Ϊλĸ˲һĲ֣Ҳֳ
+                double seconds = (System.nanoTime() - start) / 1000000000.0;
                 
                 //ӡԽ
                 System.out.println(
                         method.getName() + ' ' +
                         count + ' ' +
-                        (delta / 1000) + ' ' +
-                        (count / (delta / 1000)));
+                        String.format("%.3f", seconds) + ' ' +
+                        String.format("%.1f", count / seconds));
             }
         }catch(Exception e){
             throw new RuntimeException(e);
@@ -309,7 +326,7 @@ public class Chapter04 {
             pipe.zincrby("viewed:", -1, item);
         }
         
-        //ִЩˮ߰
-        pipe.exec();
+        //ִЩˮ߰ȡȫظ
+        pipe.sync();
     }
 }
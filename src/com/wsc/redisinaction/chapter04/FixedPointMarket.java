@@ -0,0 +1,453 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+
+import com.wsc.redisinaction.util.LuaScript;
+import com.wsc.redisinaction.util.TransactionRunner;
+
+/**
+ * Сҵλ֣ʾʽͼ۸г
+ *
+ * Chapter04.purchaseItemÿγԶDouble.parseDoubleʽ
+ * תʱ(int)priceص۸С֣10.99Ʒֻ10
+ * ʽ𱣴users:<user>funds_minorֶУ۸market:minor:еķֵλǷ֣
+ * ֵ2^53ڿԾȷʾֱתlongʽֻҪLong.parseLong
+ * תȫʹlongᶪʧȡ
+ * ʮƽͷ֮תֻڱ߽ϣ롢ʾmigrate()ͨBigDecimalС
+ *
+ * Ǩ֮funds_minormarket:minor:ΨһԴmigrate()תͬʱɾɵfundsֶΣ
+ * Ʒmarket:Ƶmarket:minor:Chapter04ScriptedMarketýضϵĽѾǨƵƷ
+ * market:seller:<seller>ȻʮƼ۸¼гϵƷMarketBrowser.browseSeller
+ * ԿǨƹƷɵĹ·ѾǨƵҼǮʱͨcredit()ɷдfunds_minor
+ *
+ * settle()һűתˣmarket:minor:ͬƷĹ򲻻ụֹ
+ *
+ * @author wsc
+ *
+ */
+public class FixedPointMarket {
+
+    public static void main(String[] args) {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        new FixedPointMarket().testFixedPointMarket(conn);
+    }
+
+    /** һԪڶСҵλСλ */
+    public static final int SCALE = 2;
+
+    /** һԪڶٷ */
+    static final long MINOR_UNIT = BigDecimal.ONE.movePointRight(SCALE).longValueExact();
+
+    private final TransactionRunner runner = new TransactionRunner();
+
+    /**
+     * һʴĹ
+     */
+    public static class Purchase {
+        private final String itemId;
+        private final String sellerId;
+        private final long priceMinor;
+
+        public Purchase(String itemId, String sellerId, long priceMinor) {
+            this.itemId = itemId;
+            this.sellerId = sellerId;
+            this.priceMinor = priceMinor;
+        }
+
+        public String getItemId() {
+            return itemId;
+        }
+
+        public String getSellerId() {
+            return sellerId;
+        }
+
+        public long getPriceMinor() {
+            return priceMinor;
+        }
+
+        public String getItem() {
+            return itemId + '.' + sellerId;
+        }
+
+        public String toString() {
+            return getItem() + "@" + fromMinor(priceMinor);
+        }
+    }
+
+    public void testFixedPointMarket(Jedis conn) {
+        System.out.println("\n----- testFixedPointMarket -----");
+        assert toMinor("10.99") == 1099;
+        assert toMinor("-0.5") == -50;
+        assert "10.99".equals(fromMinor(1099));
+
+        //ɸʽǨ֮ٶʧС
+        conn.sadd("inventory:userX", "itemA", "itemB", "itemC");
+        conn.zadd("market:", 10.99, "itemOld.userX");
+        conn.zadd("market:seller:userX", 10.99, "itemOld.userX");
+        conn.hset("users:userY", "funds", "125.50");
+        int migrated = migrate(conn, Arrays.asList("userX", "userY"), 100);
+        System.out.println("Migrated " + migrated + " users and listings");
+        assert conn.zscore("market:minor:", "itemOld.userX") == 1099;
+        assert conn.zscore("market:", "itemOld.userX") == null;
+        //ʮƼ۸browseSellerȻܿǨƹƷ
+        assert conn.zscore("market:seller:userX", "itemOld.userX") == 10.99;
+        assert getFunds(conn, "userY") == 12550;
+        //ɵfundsֶѾɾֻʣfunds_minor
+        assert conn.hget("users:userY", "funds") == null;
+        //userXûоɸʽʽǨһuserYҲظǮ
+        int again = migrate(conn, Arrays.asList("userX", "userY"), 100);
+        assert again == 0;
+        assert getFunds(conn, "userY") == 12550;
+
+        boolean l = listItem(conn, "itemA", "userX", toMinor("10.99"));
+        assert l;
+        boolean b = listItem(conn, "itemB", "userX", toMinor("20.01"));
+        assert b;
+        boolean c = listItem(conn, "itemC", "userX", toMinor("200"));
+        assert c;
+        MarketBrowser.Page page = new MarketBrowser().browseSeller(conn, "userX", 0, 1000, null, 10);
+        assert page.getItems().size() == 4;
+        assert page.getItems().get(1).getScore() == 10.99;
+
+        boolean p = purchaseItem(conn, "userY", "itemA", "userX", 1099);
+        System.out.println("Purchasing an item succeeded? " + p);
+        assert p;
+        assert getFunds(conn, "userY") == 11451;
+        assert getFunds(conn, "userX") == 1099;
+
+        //һνʹǮһʱظƷֻһ
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        purchases.add(new Purchase("itemOld", "userX", 1099));
+        purchases.add(new Purchase("itemC", "userX", 20000));
+        purchases.add(new Purchase("itemB", "userX", 2001));
+        purchases.add(new Purchase("itemB", "userX", 2001));
+        List<Purchase> settled = settle(conn, "userY", purchases);
+        System.out.println("Settled purchases: " + settled);
+        assert settled.size() == 2;
+        assert getFunds(conn, "userY") == 11451 - 1099 - 2001;
+        assert getFunds(conn, "userX") == 1099 + 1099 + 2001;
+        assert conn.zscore("market:minor:", "itemC.userX") == 20000;
+        assert conn.sismember("inventory:userY", "itemB");
+        assert conn.zscore("market:seller:userX", "itemB.userX") == null;
+
+        //ѾǨƵͨɵĹ·ƷǮɷּfunds_minor
+        conn.sadd("inventory:userX", "itemD");
+        new ScriptedMarket().listItem(conn, "itemD", "userX", 7);
+        conn.hset("users:userZ", "funds", "10");
+        boolean legacy = new ScriptedMarket().purchaseItem(conn, "userZ", "itemD", "userX", 7);
+        assert legacy;
+        assert conn.hget("users:userX", "funds") == null;
+        assert getFunds(conn, "userX") == 1099 + 1099 + 2001 + 700;
+
+        conn.del("market:", "market:minor:", "market:seller:userX", "users:userX", "users:userY", "users:userZ",
+            "inventory:userX", "inventory:userY", "inventory:userZ");
+    }
+
+    /**
+     * ʮƽתɷ֣Сλ˫
+     *
+     * @param amount "10.99"
+     * @return
+     */
+    public static long toMinor(String amount) {
+        return new BigDecimal(amount).setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+    }
+
+    /**
+     * ѷתʮƽʾ
+     */
+    public static String fromMinor(long minor) {
+        return BigDecimal.valueOf(minor, SCALE).toPlainString();
+    }
+
+    /**
+     * Redisصֵ0
+     */
+    static long parseMinor(String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    public long getFunds(Jedis conn, String userId) {
+        return parseMinor(conn.hget("users:" + userId, "funds_minor"));
+    }
+
+    /**
+     * ûǷѾǨƣֻfunds_minorֶΣûоɵfundsֶΡ
+     * ֶζûеûȻɸʽˣǨʱһת
+     *
+     * @param conn
+     * @param user users:<user>
+     * @return
+     */
+    static boolean isMigrated(Jedis conn, String user) {
+        Pipeline pipe = conn.pipelined();
+        Response<Boolean> legacy = pipe.hexists(user, "funds");
+        Response<Boolean> minor = pipe.hexists(user, "funds_minor");
+        pipe.sync();
+        return !legacy.get() && minor.get();
+    }
+
+    /**
+     * ҼϾɸʽѾǨƵһɷּӵfunds_minor
+     * Ҫңڶȡ׶isMigrated()ȡmigrated
+     *
+     * @param trans
+     * @param user users:<user>
+     * @param migrated
+     * @param amount Ԫ
+     */
+    static void credit(Transaction trans, String user, boolean migrated, long amount) {
+        if (migrated) {
+            trans.hincrBy(user, "funds_minor", amount * MINOR_UNIT);
+        } else {
+            trans.hincrBy(user, "funds", amount);
+        }
+    }
+
+    /**
+     * ű汾credit()Luacredit(user, amount)ƴڽűĿͷ
+     */
+    static final String CREDIT_FUNCTION =
+        "local function credit(user, amount) " +
+        "  if redis.call('hexists', user, 'funds') == 0 and redis.call('hexists', user, 'funds_minor') == 1 then " +
+        "    redis.call('hincrby', user, 'funds_minor', amount * " + MINOR_UNIT + ") " +
+        "  else " +
+        "    redis.call('hincrby', user, 'funds', amount) " +
+        "  end " +
+        "end ";
+
+    /**
+     * KEYS: users:<user>
+     * ARGV: funds, ķ
+     * 1ʾѾǨƣ0ʾfundsڶȡ֮޸ģ-1ʾûоɸʽʽ
+     */
+    private static final LuaScript MIGRATE_FUNDS = new LuaScript(
+        "local funds = redis.call('hget', KEYS[1], 'funds') " +
+        "if not funds then " +
+        "  return -1 " +
+        "end " +
+        "if funds ~= ARGV[1] then " +
+        "  return 0 " +
+        "end " +
+        //Ǩ֮ǰѾfunds_minorյǮ
+        "redis.call('hincrby', KEYS[1], 'funds_minor', ARGV[2]) " +
+        "redis.call('hdel', KEYS[1], 'funds') " +
+        "return 1");
+
+    /**
+     * KEYS: market:, market:minor:, market:seller:<seller>
+     * ARGV: itemId.sellerId, ļ۸, ķ
+     * еƷʮƼ۸񣻷ֵMIGRATE_FUNDSͬ
+     */
+    private static final LuaScript MIGRATE_LISTING = new LuaScript(
+        "local price = redis.call('zscore', KEYS[1], ARGV[1]) " +
+        "if not price then " +
+        "  return -1 " +
+        "end " +
+        "if tonumber(price) ~= tonumber(ARGV[2]) then " +
+        "  return 0 " +
+        "end " +
+        "redis.call('zadd', KEYS[2], ARGV[3], ARGV[1]) " +
+        "redis.call('zrem', KEYS[1], ARGV[1]) " +
+        "redis.call('zadd', KEYS[3], price, ARGV[1]) " +
+        "return 1");
+
+    /**
+     * Ѹûɸʽʽusers:<user>fundsֶΣmarket:еƷתɷ֣
+     * ֱдfunds_minorֶκmarket:minor:ͬʱɾݣǨ֮funds_minorΨһʽֶΡ
+     * market:seller:<seller>еƷ
+     * ÿûÿƷһűȽϲȡ֮޸ĵĻ¶ȡǨƣ
+     * ûɵ߸KEYS users:*ݿ
+     *
+     * @param conn
+     * @param userIds ҪǨʽû
+     * @param pageSize ÿζȡƷ
+     * @return ǨƵûƷ
+     */
+    public int migrate(Jedis conn, Collection<String> userIds, int pageSize) {
+        int count = 0;
+        for (String userId : userIds) {
+            String user = "users:" + userId;
+            while (true) {
+                String value = conn.hget(user, "funds");
+                if (value == null) {
+                    break;
+                }
+                long status = (Long)MIGRATE_FUNDS.call(conn, 1, user, value, String.valueOf(toMinor(value)));
+                if (status != 0) {
+                    count += status > 0 ? 1 : 0;
+                    break;
+                }
+            }
+        }
+
+        //ǨƹƷѾmarket:ߣǶȡһҳ۸޸ĵƷһλ
+        while (true) {
+            Set<Tuple> items = conn.zrangeWithScores("market:", 0, pageSize - 1);
+            if (items.isEmpty()) {
+                return count;
+            }
+            for (Tuple tuple : items) {
+                String item = tuple.getElement();
+                String price = Double.toString(tuple.getScore());
+                //ֵdoubleת̵ʮƱʾٻ㣬10.991098
+                long status = (Long)MIGRATE_LISTING.call(conn, 3,
+                    "market:", "market:minor:", "market:seller:" + item.substring(item.lastIndexOf('.') + 1),
+                    item, price, String.valueOf(toMinor(price)));
+                if (status > 0) {
+                    count++;
+                }
+            }
+        }
+    }
+
+    /**
+     * ҰеƷŵгϣͬʱʮƼ۸
+     *
+     * @param conn
+     * @param itemId
+     * @param sellerId
+     * @param priceMinor ۸񣨷֣
+     * @return ûƷʱfalse
+     */
+    public boolean listItem(Jedis conn, final String itemId, final String sellerId, final long priceMinor) {
+        final String inventory = "inventory:" + sellerId;
+        final double price = Double.parseDouble(fromMinor(priceMinor));
+        Boolean result = runner.run(conn, "chapter04.fixedPoint.listItem", 5000, new TransactionRunner.Operation<Boolean>() {
+            public boolean read(Jedis conn) {
+                return conn.sismember(inventory, itemId);
+            }
+
+            public void write(Transaction trans) {
+                trans.zadd("market:minor:", priceMinor, itemId + '.' + sellerId);
+                trans.zadd("market:seller:" + sellerId, price, itemId + '.' + sellerId);
+                trans.srem(inventory, itemId);
+            }
+
+            public Boolean done(List<Object> results) {
+                return true;
+            }
+
+            public Boolean rejected() {
+                return false;
+            }
+        }, inventory);
+        return result;
+    }
+
+    /**
+     * гϵƷת˵ĽǱۣûнض
+     *
+     * @param conn
+     * @param buyerId
+     * @param itemId
+     * @param sellerId
+     * @param lpriceMinor ҿļ۸񣨷֣
+     * @return ƷѾгϡ۸仯ҵǮʱfalse
+     */
+    public boolean purchaseItem(Jedis conn, String buyerId, String itemId, String sellerId, long lpriceMinor) {
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        purchases.add(new Purchase(itemId, sellerId, lpriceMinor));
+        return settle(conn, buyerId, purchases).size() == 1;
+    }
+
+    /**
+     * KEYS: users:<buyer>, inventory:<buyer>, market:minor:Ȼÿʹ2users:<seller>, market:seller:<seller>
+     * ARGV: ÿʹ3itemId.sellerId, itemId, ۸񣨷֣
+     * ˳ÿƷȻͬļ۸гϲʣµǮ㹻
+     * ֻһǮÿҲֻһǮͨĹ
+     */
+    private static final LuaScript SETTLE = new LuaScript(
+        "local remaining = tonumber(redis.call('hget', KEYS[1], 'funds_minor') or '0') " +
+        "local total = 0 " +
+        "local credits = {} " +
+        "local sellers = {} " +
+        "local accepted = {} " +
+        "for j = 0, #ARGV / 3 - 1 do " +
+        "  local item, cost = ARGV[1 + 3 * j], tonumber(ARGV[3 + 3 * j]) " +
+        //֮ƷѾгϣͬһƷʱһα
+        "  local price = redis.call('zscore', KEYS[3], item) " +
+        "  if price and tonumber(price) == cost and cost <= remaining then " +
+        "    local seller = KEYS[4 + 2 * j] " +
+        "    remaining = remaining - cost " +
+        "    total = total + cost " +
+        "    if not credits[seller] then " +
+        "      credits[seller] = 0 " +
+        "      table.insert(sellers, seller) " +
+        "    end " +
+        "    credits[seller] = credits[seller] + cost " +
+        "    redis.call('sadd', KEYS[2], ARGV[2 + 3 * j]) " +
+        "    redis.call('zrem', KEYS[3], item) " +
+        "    redis.call('zrem', KEYS[5 + 2 * j], item) " +
+        "    table.insert(accepted, tostring(j)) " +
+        "  end " +
+        "end " +
+        "for i, seller in ipairs(sellers) do " +
+        "  redis.call('hincrby', seller, 'funds_minor', credits[seller]) " +
+        "end " +
+        "if total > 0 then " +
+        "  redis.call('hincrby', KEYS[1], 'funds_minor', -total) " +
+        "end " +
+        "return accepted");
+
+    /**
+     * һҵĶʹ򣺰˳ÿƷȻͬļ۸гϣ
+     * ʣµǮ㹻ȻͨĹ
+     * ͬһƷֶʱֻһΡдһűɣ
+     * Ҫmarket:minor:Ʒϼܺ͹򲻻ý
+     *
+     * @param conn
+     * @param buyerId
+     * @param purchases
+     * @return ɹĹı
+     */
+    public List<Purchase> settle(Jedis conn, String buyerId, List<Purchase> purchases) {
+        Map<String,Purchase> unique = new LinkedHashMap<String,Purchase>();
+        for (Purchase purchase : purchases) {
+            if (!unique.containsKey(purchase.getItem())) {
+                unique.put(purchase.getItem(), purchase);
+            }
+        }
+        List<Purchase> candidates = new ArrayList<Purchase>(unique.values());
+
+        List<String> keys = new ArrayList<String>();
+        List<String> args = new ArrayList<String>();
+        keys.add("users:" + buyerId);
+        keys.add("inventory:" + buyerId);
+        keys.add("market:minor:");
+        for (Purchase purchase : candidates) {
+            keys.add("users:" + purchase.getSellerId());
+            keys.add("market:seller:" + purchase.getSellerId());
+            args.add(purchase.getItem());
+            args.add(purchase.getItemId());
+            args.add(String.valueOf(purchase.getPriceMinor()));
+        }
+        keys.addAll(args);
+
+        @SuppressWarnings("unchecked")
+        List<String> accepted = (List<String>)SETTLE.call(
+            conn, keys.size() - args.size(), keys.toArray(new String[keys.size()]));
+        List<Purchase> result = new ArrayList<Purchase>();
+        for (String index : accepted) {
+            result.add(candidates.get(Integer.parseInt(index)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,247 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+
+import com.wsc.redisinaction.util.LuaScript;
+
+/**
+ * ҳƷг
+ *
+ * ԭֻzrangeWithScores("market:", 0, -1)ȡггԽԽ
+ * ﰴ۸ҳÿҳĴֻҳСйأ
+ *   browse        гmarket:
+ *   browseSeller  ֻĳҵƷʹlistItem/purchaseItemͬά
+ *                 market:seller:<seller>Աͷֵmarket:ͬ
+ *                 FixedPointMarketеƷҲʮƼ۸¼
+ * ҳʹαƫα¼һҳһƷļ۸ͳԱ
+ * һҳƷ֮ʼмƷ߻ϼҲظ©
+ * λαͶȡһҳͬһLuaűɣ֮䲻д롣
+ *
+ * @author wsc
+ *
+ */
+public class MarketBrowser {
+
+    public static void main(String[] args) {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        new MarketBrowser().testMarketBrowser(conn);
+    }
+
+    /**
+     * һҳ
+     */
+    public static class Page {
+        private final List<Tuple> items;
+        private final String cursor;
+
+        public Page(List<Tuple> items, String cursor) {
+            this.items = items;
+            this.cursor = cursor;
+        }
+
+        public List<Tuple> getItems() {
+            return items;
+        }
+
+        /**
+         * һҳα꣬ûиƷʱؿֵ
+         */
+        public String getCursor() {
+            return cursor;
+        }
+    }
+
+    public void testMarketBrowser(Jedis conn) {
+        System.out.println("\n----- testMarketBrowser -----");
+        Chapter04 ch04 = new Chapter04();
+        for (int i = 0; i < 30; i++) {
+            String seller = i % 3 == 0 ? "userA" : "userB";
+            conn.sadd("inventory:" + seller, "item" + i);
+            ch04.listItem(conn, "item" + i, seller, i % 10);
+        }
+
+        List<String> seen = new ArrayList<String>();
+        String cursor = null;
+        do {
+            Page page = browse(conn, 2, 7, cursor, 4);
+            for (Tuple tuple : page.getItems()) {
+                assert tuple.getScore() >= 2 && tuple.getScore() <= 7;
+                seen.add(tuple.getElement());
+            }
+            cursor = page.getCursor();
+        } while (cursor != null);
+        System.out.println("Items priced 2..7: " + seen);
+        assert seen.size() == 18;
+
+        Page page = browseSeller(conn, "userA", 0, Double.POSITIVE_INFINITY, null, 100);
+        System.out.println("Items sold by userA: " + page.getItems().size());
+        assert page.getItems().size() == 10;
+        assert page.getCursor() == null;
+
+        //αڵƷ֮һҳȻ֮ʼ
+        page = browse(conn, 0, 9, null, 5);
+        String last = page.getItems().get(4).getElement();
+        conn.hset("users:userY", "funds", "100");
+        String[] parts = last.split("\\.");
+        boolean p = ch04.purchaseItem(conn, "userY", parts[0], parts[1], page.getItems().get(4).getScore());
+        assert p;
+        Page next = browse(conn, 0, 9, page.getCursor(), 5);
+        assert !next.getItems().get(0).getElement().equals(last);
+        assert next.getItems().get(0).getScore() >= page.getItems().get(4).getScore();
+        assert browseSeller(conn, parts[1], 0, 9, null, 100).getItems().size() == (parts[1].equals("userA") ? 9 : 19);
+
+        conn.del("market:", "market:seller:userA", "market:seller:userB",
+            "inventory:userA", "inventory:userB", "inventory:userY", "users:userA", "users:userB", "users:userY");
+    }
+
+    /**
+     * ۸ӵ͵гм۸λ[min, max]֮Ʒ
+     *
+     * @param conn
+     * @param min
+     * @param max
+     * @param cursor һҳصα꣬һҳֵ
+     * @param limit ÿҳƷ
+     * @return
+     */
+    public Page browse(Jedis conn, double min, double max, String cursor, int limit) {
+        return browseKey(conn, "market:", min, max, cursor, limit);
+    }
+
+    /**
+     * ֻĳҵƷ
+     *
+     * @param conn
+     * @param sellerId
+     * @param min
+     * @param max
+     * @param cursor
+     * @param limit
+     * @return
+     */
+    public Page browseSeller(Jedis conn, String sellerId, double min, double max, String cursor, int limit) {
+        return browseKey(conn, "market:seller:" + sellerId, min, max, cursor, limit);
+    }
+
+    /**
+     * ȡһҳƷسԱͷֵеб
+     * KEYS: 򼯺ϣARGV: min, max, limit, Ƿα, α۸, αԱ
+     * αڵƷڡ۸Ҳûб仯ʱ֮ʼ
+     * ZCOUNTҵͬƷ䣬ֽٰ˳RedisĳԱ˳ͬ
+     * ֲҵһαԱ֮ƷO(log n)ͬƷ
+     */
+    private static final LuaScript BROWSE_PAGE = new LuaScript(
+        "local function before(a, b) " +
+        "  for i = 1, math.min(#a, #b) do " +
+        "    local x, y = string.byte(a, i), string.byte(b, i) " +
+        "    if x ~= y then return x < y end " +
+        "  end " +
+        "  return #a < #b " +
+        "end " +
+        "local max = ARGV[2] == '+inf' and math.huge or tonumber(ARGV[2]) " +
+        "local limit = tonumber(ARGV[3]) " +
+        "local first = redis.call('zcount', KEYS[1], '-inf', '(' .. ARGV[1]) " +
+        "local start = first " +
+        "if ARGV[4] == '1' then " +
+        "  local rank = redis.call('zrank', KEYS[1], ARGV[6]) " +
+        "  local score = redis.call('zscore', KEYS[1], ARGV[6]) " +
+        "  if rank and tonumber(score) == tonumber(ARGV[5]) then " +
+        "    start = rank + 1 " +
+        "  else " +
+        "    local lo = redis.call('zcount', KEYS[1], '-inf', '(' .. ARGV[5]) " +
+        "    local hi = lo + redis.call('zcount', KEYS[1], ARGV[5], ARGV[5]) " +
+        "    while lo < hi do " +
+        "      local mid = math.floor((lo + hi) / 2) " +
+        "      if before(ARGV[6], redis.call('zrange', KEYS[1], mid, mid)[1]) then " +
+        "        hi = mid " +
+        "      else " +
+        "        lo = mid + 1 " +
+        "      end " +
+        "    end " +
+        "    start = lo " +
+        "  end " +
+        "  if start < first then start = first end " +
+        "end " +
+        "local items = redis.call('zrange', KEYS[1], start, start + limit - 1, 'WITHSCORES') " +
+        "local result = {} " +
+        "for i = 1, #items, 2 do " +
+        "  if tonumber(items[i + 1]) > max then break end " +
+        "  table.insert(result, items[i]) " +
+        "  table.insert(result, items[i + 1]) " +
+        "end " +
+        "return result");
+
+    @SuppressWarnings("unchecked")
+    private Page browseKey(Jedis conn, String key, double min, double max, String cursor, int limit) {
+        String lastPrice = "";
+        String lastMember = "";
+        if (cursor != null) {
+            int split = cursor.indexOf('|');
+            lastPrice = cursor.substring(0, split);
+            lastMember = cursor.substring(split + 1);
+        }
+        List<String> result = (List<String>)BROWSE_PAGE.call(conn, 1, key,
+            score(min), score(max), String.valueOf(limit), cursor != null ? "1" : "0", lastPrice, lastMember);
+
+        List<Tuple> items = new ArrayList<Tuple>();
+        for (int i = 0; i < result.size(); i += 2) {
+            items.add(new Tuple(result.get(i), Double.valueOf(result.get(i + 1))));
+        }
+
+        String next = null;
+        if (items.size() == limit) {
+            Tuple last = items.get(items.size() - 1);
+            next = last.getScore() + "|" + last.getElement();
+        }
+        return new Page(items, next);
+    }
+
+    private String score(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+inf" : "-inf";
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * market:market:minor:ؽҵڸеݽ
+     * market:minor:ԷΪλļ۸ʮƼ۸
+     *
+     * @param conn
+     * @param pageSize ÿȡƷ
+     * @return Ʒ
+     */
+    public int rebuildSellerIndex(Jedis conn, int pageSize) {
+        return rebuildSellerIndex(conn, "market:", false, pageSize)
+            + rebuildSellerIndex(conn, "market:minor:", true, pageSize);
+    }
+
+    private int rebuildSellerIndex(Jedis conn, String market, boolean minor, int pageSize) {
+        int count = 0;
+        while (true) {
+            Set<Tuple> items = conn.zrangeWithScores(market, count, count + pageSize - 1);
+            Pipeline pipe = conn.pipelined();
+            for (Tuple tuple : items) {
+                String item = tuple.getElement();
+                String sellerId = item.substring(item.indexOf('.') + 1);
+                double price = minor
+                    ? Double.parseDouble(FixedPointMarket.fromMinor((long)tuple.getScore()))
+                    : tuple.getScore();
+                pipe.zadd("market:seller:" + sellerId, price, item);
+            }
+            pipe.sync();
+            count += items.size();
+            if (items.size() < pageSize) {
+                return count;
+            }
+        }
+    }
+}
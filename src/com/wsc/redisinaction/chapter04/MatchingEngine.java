@@ -0,0 +1,511 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+
+import com.wsc.redisinaction.util.LuaScript;
+
+/**
+ * ڵĶ档
+ *
+ * Chapter04ְֻ֧ÿγԶҪRedisüΡ
+ * ڴΪÿƷάһOrderBook޼ڴдϣ
+ * ƷitemIdɢֵָshardṣ߳ÿֻһ̷߳ʣҪ
+ * ÿ߳һȡbatchSize󣬴֮һLuaűдõгɽ
+ * űʼƷȻͬļ۸гϡ㹻ǮʽƷƶpurchaseItemȫͬ
+ * űֻһ漰ĳԱƷϼܺ͹򲻻һԡ
+ * ۷仯Ʒµļ۸صڵȴ򵥿ͨcancel()
+ * quit()ʱлڵȴ򵥶ᱻ
+ *
+ * ʱͨrebuild()market:ؽ֮ϼܵƷlistItemŵгϣ
+ * ٵaddListing()֪ͨ档
+ *
+ * @author wsc
+ *
+ */
+public class MatchingEngine {
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testMatchingEngine(conn);
+        benchmarkMatching(conn, 20000);
+    }
+
+    private final ShardThread[] shards;
+    private final int batchSize;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong fills = new AtomicLong();
+
+    public MatchingEngine(int shardCount, int batchSize) {
+        this.batchSize = batchSize;
+        shards = new ShardThread[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ShardThread();
+        }
+    }
+
+    public static void testMatchingEngine(Jedis conn)
+        throws InterruptedException
+    {
+        System.out.println("\n----- testMatchingEngine -----");
+        Chapter04 ch04 = new Chapter04();
+        conn.sadd("inventory:userA", "itemX");
+        conn.sadd("inventory:userB", "itemX");
+        conn.sadd("inventory:userC", "itemX");
+        ch04.listItem(conn, "itemX", "userA", 10);
+        ch04.listItem(conn, "itemX", "userB", 8);
+        conn.hset("users:userY", "funds", "20");
+        conn.hset("users:userZ", "funds", "5");
+
+        MatchingEngine engine = new MatchingEngine(2, 100);
+        System.out.println("Rebuilt listings: " + engine.rebuild(conn, 100));
+        engine.start();
+
+        OrderBook.Order first = engine.submit("userY", "itemX", 9);
+        boolean f = first.await(5000);
+        assert f;
+        System.out.println("The first order matched " + first.getFilledWith().getItem());
+        assert first.getStatus() == OrderBook.Status.FILLED;
+        assert "userB".equals(first.getFilledWith().getSellerId());
+
+        //ûб۲9ƷڶֱƷϼ
+        OrderBook.Order second = engine.submit("userY", "itemX", 9);
+        boolean waited = second.await(200);
+        assert !waited;
+        ch04.listItem(conn, "itemX", "userC", 9);
+        engine.addListing("itemX", "userC", 9);
+        boolean s = second.await(5000);
+        assert s;
+        assert second.getStatus() == OrderBook.Status.FILLED;
+
+        //ǮұܾƷص
+        OrderBook.Order third = engine.submit("userZ", "itemX", 10);
+        boolean r = third.await(5000);
+        assert r;
+        System.out.println("An order without enough funds is " + third.getStatus());
+        assert third.getStatus() == OrderBook.Status.REJECTED;
+
+        //ڵȴ򵥿Գ
+        OrderBook.Order fourth = engine.submit("userY", "itemX", 1);
+        engine.cancel(fourth);
+        boolean c = fourth.await(5000);
+        assert c;
+        assert fourth.getStatus() == OrderBook.Status.CANCELLED;
+
+        //֮ⱻĶƷ¼۸صǱ
+        conn.zadd("market:", 2, "itemX.userA");
+        OrderBook.Order fifth = engine.submit("userY", "itemX", 10);
+        boolean u = fifth.await(5000);
+        assert u;
+        System.out.println("A repriced listing is " + fifth.getStatus() + " at " + fifth.getFilledWith().getPrice());
+        assert fifth.getStatus() == OrderBook.Status.FILLED;
+        assert fifth.getFilledWith().getPrice() == 2;
+
+        //quit()ʣµ
+        OrderBook.Order sixth = engine.submit("userY", "itemX", 1);
+        engine.quit();
+        assert sixth.getStatus() == OrderBook.Status.CANCELLED;
+
+        assert "1".equals(conn.hget("users:userY", "funds"));
+        assert "8".equals(conn.hget("users:userB", "funds"));
+        assert "9".equals(conn.hget("users:userC", "funds"));
+        assert "2".equals(conn.hget("users:userA", "funds"));
+        assert conn.zcard("market:") == 0;
+
+        conn.del("market:", "market:seller:userA", "market:seller:userB", "market:seller:userC",
+            "users:userA", "users:userB", "users:userC", "users:userY", "users:userZ", "inventory:userY");
+    }
+
+    /**
+     * ȽpurchaseItemʹôͬĹʱ
+     *
+     * @param conn
+     * @param orders
+     * @throws InterruptedException
+     */
+    public static void benchmarkMatching(Jedis conn, int orders)
+        throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkMatching -----");
+        Chapter04 ch04 = new Chapter04();
+
+        stockMarket(conn, orders);
+        long start = System.nanoTime();
+        for (int i = 0; i < orders; i++) {
+            ch04.purchaseItem(conn, "buyer" + (i % 10), "item" + (i % 100), "seller" + (i / 100), 10);
+        }
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        System.out.println(String.format("purchaseItem: %.0f orders/s", orders / seconds));
+        cleanMarket(conn);
+
+        stockMarket(conn, orders);
+        MatchingEngine engine = new MatchingEngine(4, 200);
+        engine.rebuild(conn, 1000);
+        engine.start();
+        start = System.nanoTime();
+        List<OrderBook.Order> submitted = new ArrayList<OrderBook.Order>();
+        for (int i = 0; i < orders; i++) {
+            submitted.add(engine.submit("buyer" + (i % 10), "item" + (i % 100), 10));
+        }
+        int filled = 0;
+        for (OrderBook.Order order : submitted) {
+            order.await(60000);
+            if (order.getStatus() == OrderBook.Status.FILLED) {
+                filled++;
+            }
+        }
+        seconds = (System.nanoTime() - start) / 1000000000.0;
+        engine.quit();
+        System.out.println(String.format("MatchingEngine: %.0f orders/s (%d filled)", orders / seconds, filled));
+        System.out.println(String.format("Commit scripts: %d (%.1f fills each)",
+            engine.getCommits(), engine.getFills() / (double)Math.max(engine.getCommits(), 1)));
+        cleanMarket(conn);
+    }
+
+    private static void stockMarket(Jedis conn, int orders) {
+        Pipeline pipe = conn.pipelined();
+        for (int i = 0; i < 10; i++) {
+            pipe.hset("users:buyer" + i, "funds", "1000000000");
+        }
+        for (int i = 0; i < orders; i++) {
+            String item = "item" + (i % 100) + ".seller" + (i / 100);
+            pipe.zadd("market:", 10, item);
+            pipe.zadd("market:seller:seller" + (i / 100), 10, item);
+        }
+        pipe.sync();
+    }
+
+    private static void cleanMarket(Jedis conn) {
+        Set<String> keys = conn.keys("users:*");
+        keys.addAll(conn.keys("inventory:*"));
+        keys.addAll(conn.keys("market:*"));
+        if (keys.size() > 0) {
+            conn.del(keys.toArray(new String[keys.size()]));
+        }
+    }
+
+    /**
+     * market:ƷŽstart()֮ǰ
+     *
+     * @param conn
+     * @param pageSize
+     * @return Ʒ
+     */
+    public int rebuild(Jedis conn, int pageSize) {
+        int count = 0;
+        while (true) {
+            Set<Tuple> items = conn.zrangeWithScores("market:", count, count + pageSize - 1);
+            for (Tuple tuple : items) {
+                String item = tuple.getElement();
+                int split = item.indexOf('.');
+                OrderBook.Listing listing = new OrderBook.Listing(
+                    item.substring(0, split), item.substring(split + 1), tuple.getScore());
+                shardFor(listing.getItemId()).book(listing.getItemId()).addListing(listing);
+            }
+            count += items.size();
+            if (items.size() < pageSize) {
+                return count;
+            }
+        }
+    }
+
+    public void start() {
+        for (ShardThread shard : shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Ѿύֹ̣֮ͣ߳ڶеȴ򵥱
+     *
+     * @throws InterruptedException
+     */
+    public void quit()
+        throws InterruptedException
+    {
+        for (ShardThread shard : shards) {
+            shard.quit();
+        }
+        for (ShardThread shard : shards) {
+            shard.join();
+        }
+    }
+
+    /**
+     * ύһ޼
+     *
+     * @param buyerId
+     * @param itemId
+     * @param limit Ը֧߼۸
+     * @return ͨawait()ȴɽ
+     */
+    public OrderBook.Order submit(String buyerId, String itemId, double limit) {
+        OrderBook.Order order = new OrderBook.Order(buyerId, itemId, limit);
+        shardFor(itemId).queue.add(order);
+        return order;
+    }
+
+    /**
+     * ֪ͨһƷѾŵmarket:
+     *
+     * @param itemId
+     * @param sellerId
+     * @param price
+     */
+    public void addListing(String itemId, String sellerId, double price) {
+        shardFor(itemId).queue.add(new OrderBook.Listing(itemId, sellerId, price));
+    }
+
+    /**
+     * һڶеȴ򵥡첽ģɹʱ״̬ΪCANCELLED
+     * Ѿɽܾ߱ʱûκЧ
+     *
+     * @param order
+     */
+    public void cancel(OrderBook.Order order) {
+        shardFor(order.getItemId()).queue.add(new Cancel(order));
+    }
+
+    /**
+     * ִдűĴ
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * дűĳɽ
+     */
+    public long getFills() {
+        return fills.get();
+    }
+
+    private ShardThread shardFor(String itemId) {
+        return shards[(itemId.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+    private static class Cancel {
+        private final OrderBook.Order order;
+
+        private Cancel(OrderBook.Order order) {
+            this.order = order;
+        }
+    }
+
+    /**
+     * һдĽ
+     */
+    private static class Commit {
+        private final List<OrderBook.Fill> accepted = new ArrayList<OrderBook.Fill>();
+        /** ҵǮ */
+        private final List<OrderBook.Fill> unfunded = new ArrayList<OrderBook.Fill>();
+        /** ƷѾгϻ߼۸˱仯 */
+        private final List<OrderBook.Fill> vanished = new ArrayList<OrderBook.Fill>();
+        /** ¼۸гϵƷ */
+        private final List<OrderBook.Listing> repriced = new ArrayList<OrderBook.Listing>();
+    }
+
+    private class ShardThread
+        extends Thread
+    {
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+        private final Map<String,OrderBook> books = new HashMap<String,OrderBook>();
+        private volatile boolean quit;
+
+        public void quit() {
+            quit = true;
+        }
+
+        private OrderBook book(String itemId) {
+            OrderBook book = books.get(itemId);
+            if (book == null) {
+                book = new OrderBook();
+                books.put(itemId, book);
+            }
+            return book;
+        }
+
+        public void run() {
+            Jedis conn = new Jedis("localhost");
+            conn.select(15);
+            List<Object> batch = new ArrayList<Object>();
+
+            while (!quit || !queue.isEmpty()) {
+                Object first;
+                try {
+                    first = queue.poll(100, TimeUnit.MILLISECONDS);
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (first == null) {
+                    continue;
+                }
+
+                //һ󣬵õĳɽһд
+                batch.clear();
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                List<OrderBook.Fill> fills = new ArrayList<OrderBook.Fill>();
+                for (Object request : batch) {
+                    OrderBook.Fill fill;
+                    if (request instanceof OrderBook.Order) {
+                        OrderBook.Order order = (OrderBook.Order)request;
+                        fill = book(order.getItemId()).addOrder(order);
+                    } else if (request instanceof Cancel) {
+                        OrderBook.Order order = ((Cancel)request).order;
+                        if (book(order.getItemId()).cancel(order)) {
+                            order.cancel();
+                        }
+                        fill = null;
+                    } else {
+                        OrderBook.Listing listing = (OrderBook.Listing)request;
+                        fill = book(listing.getItemId()).addListing(listing);
+                    }
+                    if (fill != null) {
+                        fills.add(fill);
+                    }
+                }
+
+                while (!fills.isEmpty()) {
+                    fills = settle(commit(conn, fills));
+                }
+            }
+            for (OrderBook book : books.values()) {
+                for (OrderBook.Order order : book.cancelAll()) {
+                    order.cancel();
+                }
+            }
+            conn.disconnect();
+        }
+
+        /**
+         * дĽ˻صĶƷ½붩˲³ɽ
+         */
+        private List<OrderBook.Fill> settle(Commit commit) {
+            List<OrderBook.Fill> again = new ArrayList<OrderBook.Fill>();
+            for (OrderBook.Fill fill : commit.accepted) {
+                fill.getOrder().fill(fill.getListing());
+            }
+            for (OrderBook.Fill fill : commit.unfunded) {
+                fill.getOrder().reject();
+                OrderBook.Fill next = book(fill.getListing().getItemId()).addListing(fill.getListing());
+                if (next != null) {
+                    again.add(next);
+                }
+            }
+            for (OrderBook.Listing listing : commit.repriced) {
+                OrderBook.Fill next = book(listing.getItemId()).addListing(listing);
+                if (next != null) {
+                    again.add(next);
+                }
+            }
+            for (OrderBook.Fill fill : commit.vanished) {
+                OrderBook.Fill next = book(fill.getOrder().getItemId()).addOrder(fill.getOrder());
+                if (next != null) {
+                    again.add(next);
+                }
+            }
+            return again;
+        }
+    }
+
+    /**
+     * дһɽÿʳɽļдScriptedMarket.PURCHASE_ITEMͬ
+     * KEYS: market:Ȼÿʳɽ4users:<buyer>, users:<seller>, inventory:<buyer>, market:seller:<seller>
+     * ARGV: ÿʳɽ3itemId.sellerId, itemId, ʱı
+     * ÿʳɽһokʾɽunfundedʾҵǮ
+     * ƷǰıۣƷѾгʱΪַ
+     */
+    private static final LuaScript COMMIT_FILLS = new LuaScript(
+        FixedPointMarket.CREDIT_FUNCTION +
+        "local result = {} " +
+        "for j = 0, #ARGV / 3 - 1 do " +
+        "  local buyer, seller, inventory, sellerIndex = KEYS[2 + 4 * j], KEYS[3 + 4 * j], KEYS[4 + 4 * j], KEYS[5 + 4 * j] " +
+        "  local item, itemId = ARGV[1 + 3 * j], ARGV[2 + 3 * j] " +
+        "  local score = redis.call('zscore', KEYS[1], item) " +
+        "  local price = tonumber(score) " +
+        "  local funds = tonumber(redis.call('hget', buyer, 'funds')) " +
+        "  if not price or price ~= tonumber(ARGV[3 + 3 * j]) then " +
+        "    table.insert(result, score or '') " +
+        "  elseif not funds or price > funds then " +
+        "    table.insert(result, 'unfunded') " +
+        "  else " +
+        //Chapter04һתˣСֱص
+        "    local amount = price >= 0 and math.floor(price) or math.ceil(price) " +
+        "    if amount ~= 0 then " +
+        "      credit(seller, amount) " +
+        "      redis.call('hincrby', buyer, 'funds', -amount) " +
+        "    end " +
+        "    redis.call('sadd', inventory, itemId) " +
+        "    redis.call('zrem', KEYS[1], item) " +
+        "    redis.call('zrem', sellerIndex, item) " +
+        "    table.insert(result, 'ok') " +
+        "  end " +
+        "end " +
+        "return result");
+
+    /**
+     * һɽдRedis
+     *
+     * @param conn
+     * @param fills
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private Commit commit(Jedis conn, List<OrderBook.Fill> fills) {
+        List<String> keys = new ArrayList<String>();
+        List<String> args = new ArrayList<String>();
+        keys.add("market:");
+        for (OrderBook.Fill fill : fills) {
+            OrderBook.Listing listing = fill.getListing();
+            String buyerId = fill.getOrder().getBuyerId();
+            keys.add("users:" + buyerId);
+            keys.add("users:" + listing.getSellerId());
+            keys.add("inventory:" + buyerId);
+            keys.add("market:seller:" + listing.getSellerId());
+            args.add(listing.getItem());
+            args.add(listing.getItemId());
+            args.add(String.valueOf(listing.getPrice()));
+        }
+        keys.addAll(args);
+        List<String> results = (List<String>)COMMIT_FILLS.call(
+            conn, fills.size() * 4 + 1, keys.toArray(new String[keys.size()]));
+        commits.incrementAndGet();
+        this.fills.addAndGet(fills.size());
+
+        Commit commit = new Commit();
+        for (int i = 0; i < fills.size(); i++) {
+            OrderBook.Fill fill = fills.get(i);
+            String result = results.get(i);
+            if ("ok".equals(result)) {
+                commit.accepted.add(fill);
+            } else if ("unfunded".equals(result)) {
+                commit.unfunded.add(fill);
+            } else {
+                commit.vanished.add(fill);
+                if (result.length() > 0) {
+                    OrderBook.Listing listing = fill.getListing();
+                    commit.repriced.add(new OrderBook.Listing(
+                        listing.getItemId(), listing.getSellerId(), Double.parseDouble(result)));
+                }
+            }
+        }
+        return commit;
+    }
+}
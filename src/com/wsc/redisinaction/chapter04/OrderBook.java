@@ -0,0 +1,233 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * һƷitemIdĶ۸-ʱȴϡ
+ *
+ * гϵƷitemId.sellerId۸͡ϼȣ
+ * ޼򵥣۸ߡύȡɽ۸ƷıۣpurchaseItemͬ
+ * ̰߳ȫģMatchingEngineиƷǸ̶߳ռʹá
+ *
+ * @author wsc
+ *
+ */
+public class OrderBook {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * гϵһƷ
+     */
+    public static class Listing {
+        private final String itemId;
+        private final String sellerId;
+        private final double price;
+        private final long sequence = SEQUENCE.incrementAndGet();
+
+        public Listing(String itemId, String sellerId, double price) {
+            this.itemId = itemId;
+            this.sellerId = sellerId;
+            this.price = price;
+        }
+
+        public String getItemId() {
+            return itemId;
+        }
+
+        public String getSellerId() {
+            return sellerId;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+
+        public String getItem() {
+            return itemId + '.' + sellerId;
+        }
+    }
+
+    public enum Status {
+        /** ûгɽڶеȴµƷ */
+        OPEN,
+        /** ѾɽʽƷѾдRedis */
+        FILLED,
+        /** ҵǮ */
+        REJECTED,
+        /** ֹͣʱڵȴ */
+        CANCELLED
+    }
+
+    /**
+     * ޼
+     */
+    public static class Order {
+        private final String buyerId;
+        private final String itemId;
+        private final double limit;
+        private final long sequence = SEQUENCE.incrementAndGet();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile Status status = Status.OPEN;
+        private volatile Listing filledWith;
+
+        public Order(String buyerId, String itemId, double limit) {
+            this.buyerId = buyerId;
+            this.itemId = itemId;
+            this.limit = limit;
+        }
+
+        public String getBuyerId() {
+            return buyerId;
+        }
+
+        public String getItemId() {
+            return itemId;
+        }
+
+        public double getLimit() {
+            return limit;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * ɽƷûгɽʱؿֵ
+         */
+        public Listing getFilledWith() {
+            return filledWith;
+        }
+
+        /**
+         * ȴɽܾ߱
+         *
+         * @param timeoutMillis
+         * @return ȻOPENʱfalse
+         * @throws InterruptedException
+         */
+        public boolean await(long timeoutMillis)
+            throws InterruptedException
+        {
+            return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void fill(Listing listing) {
+            filledWith = listing;
+            status = Status.FILLED;
+            finished.countDown();
+        }
+
+        void reject() {
+            status = Status.REJECTED;
+            finished.countDown();
+        }
+
+        void cancel() {
+            status = Status.CANCELLED;
+            finished.countDown();
+        }
+    }
+
+    /**
+     * һδϵĽдRedis֮ǰҪҵʽ
+     */
+    public static class Fill {
+        private final Order order;
+        private final Listing listing;
+
+        public Fill(Order order, Listing listing) {
+            this.order = order;
+            this.listing = listing;
+        }
+
+        public Order getOrder() {
+            return order;
+        }
+
+        public Listing getListing() {
+            return listing;
+        }
+    }
+
+    private static final Comparator<Listing> ASKS = new Comparator<Listing>() {
+        public int compare(Listing a, Listing b) {
+            int cmp = Double.compare(a.price, b.price);
+            return cmp != 0 ? cmp : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<Order> BIDS = new Comparator<Order>() {
+        public int compare(Order a, Order b) {
+            int cmp = Double.compare(b.limit, a.limit);
+            return cmp != 0 ? cmp : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final TreeSet<Listing> asks = new TreeSet<Listing>(ASKS);
+    private final TreeSet<Order> bids = new TreeSet<Order>(BIDS);
+
+    /**
+     * һƷг۲ڱ۵򵥾
+     *
+     * @param listing
+     * @return Ͻûдʱؿֵ
+     */
+    public Fill addListing(Listing listing) {
+        if (!bids.isEmpty() && bids.first().limit >= listing.price) {
+            return new Fill(bids.pollFirst(), listing);
+        }
+        asks.add(listing);
+        return null;
+    }
+
+    /**
+     * һ򵥣б۲޼۵Ʒϣڶ
+     *
+     * @param order
+     * @return Ͻûдʱؿֵ
+     */
+    public Fill addOrder(Order order) {
+        if (!asks.isEmpty() && asks.first().price <= order.limit) {
+            return new Fill(order, asks.pollFirst());
+        }
+        bids.add(order);
+        return null;
+    }
+
+    /**
+     * ӶƳһƷѾͨ;
+     */
+    public boolean removeListing(Listing listing) {
+        return asks.remove(listing);
+    }
+
+    public boolean cancel(Order order) {
+        return bids.remove(order);
+    }
+
+    /**
+     * Ƴлڵȴ
+     *
+     * @return Ƴ
+     */
+    public List<Order> cancelAll() {
+        List<Order> cancelled = new ArrayList<Order>(bids);
+        bids.clear();
+        return cancelled;
+    }
+
+    public int getAskCount() {
+        return asks.size();
+    }
+
+    public int getBidCount() {
+        return bids.size();
+    }
+}
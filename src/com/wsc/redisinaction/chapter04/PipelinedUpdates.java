@@ -0,0 +1,234 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import com.wsc.redisinaction.chapter05.Chapter05;
+import com.wsc.redisinaction.util.PipelineBatcher;
+
+/**
+ * ͨPipelineBatcherִеupdateTokenlogRecentͻỰ
+ *
+ * Chapter04.updateTokenPipelineһεõŽһˮߣÿεȻҪһ
+ * ĺֻPipelineBatcherһFuture
+ * ͬá̵ͬ߳ϲֻͣҪظʱŵȴ
+ *
+ * @author wsc
+ *
+ */
+public class PipelinedUpdates {
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        PipelinedUpdates updates = new PipelinedUpdates();
+        updates.testPipelinedUpdates(conn);
+        updates.benchmarkUpdateToken(conn, 5);
+    }
+
+    public void testPipelinedUpdates(Jedis conn)
+        throws Exception
+    {
+        System.out.println("\n----- testPipelinedUpdates -----");
+        PipelineBatcher batcher = new PipelineBatcher(50, 1000);
+
+        List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(updateToken(batcher, "token" + i, "user" + i, "item" + (i % 10)));
+        }
+        for (CompletableFuture<Long> future : futures) {
+            //ÿƶǵһγ
+            assert future.get() == 1;
+        }
+        System.out.println("Flushed 200 updates in " + batcher.getFlushes() + " round trips");
+        assert conn.zcard("recent:") == 200;
+        assert conn.zscore("viewed:", "item0") == -20;
+
+        long length = logRecent(batcher, "test", "this is a message", Chapter05.INFO).get();
+        assert length == 1;
+        assert conn.llen("recent:test:info") == 1;
+
+        CleanSessionsThread thread = new CleanSessionsThread(150, batcher);
+        thread.start();
+        Thread.sleep(1000);
+        thread.quit();
+        thread.join();
+        System.out.println("Sessions left after cleaning: " + conn.hlen("login:"));
+        assert conn.hlen("login:") == 150;
+
+        batcher.close();
+        Set<String> keys = conn.keys("viewed:*");
+        keys.add("login:");
+        keys.add("recent:");
+        keys.add("recent:test:info");
+        conn.del(keys.toArray(new String[keys.size()]));
+    }
+
+    /**
+     * Chapter04.benchmarkUpdateTokenͬĲԣֻͨ͡ȴķʽ
+     *
+     * @param conn
+     * @param duration ÿַʽе
+     * @throws Exception
+     */
+    public void benchmarkUpdateToken(Jedis conn, int duration)
+        throws Exception
+    {
+        System.out.println("\n----- benchmarkUpdateToken -----");
+        new Chapter04().benchmarkUpdateToken(conn, duration);
+
+        PipelineBatcher batcher = new PipelineBatcher(100, 1000);
+        int count = 0;
+        long start = System.nanoTime();
+        long end = start + duration * 1000000000L;
+        CompletableFuture<Long> last = null;
+        while (System.nanoTime() < end) {
+            count++;
+            last = updateToken(batcher, "token", "user", "item");
+            //ûɵ
+            if (count % 10000 == 0) {
+                last.get();
+            }
+        }
+        if (last != null) {
+            last.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        batcher.close();
+        System.out.println(
+            "updateTokenBatched " + count + ' ' + String.format("%.3f", seconds) + ' ' +
+            String.format("%.1f", count / seconds) + String.format(" (%.1f per round trip)", batcher.getMeanBatchSize()));
+        conn.del("login:", "recent:", "viewed:token", "viewed:");
+    }
+
+    /**
+     * Chapter04.updateTokenͬ
+     *
+     * @param batcher
+     * @param token
+     * @param user
+     * @param item
+     * @return ZADD recent:ĻظƵһγʱΪ1
+     */
+    public CompletableFuture<Long> updateToken(
+        PipelineBatcher batcher, final String token, final String user, final String item)
+    {
+        final long timestamp = System.currentTimeMillis() / 1000;
+        return batcher.submit(new PipelineBatcher.Command<Long>() {
+            public Response<Long> queue(Pipeline pipe) {
+                pipe.hset("login:", token, user);
+                Response<Long> added = pipe.zadd("recent:", timestamp, token);
+                if (item != null) {
+                    pipe.zadd("viewed:" + token, timestamp, item);
+                    pipe.zremrangeByRank("viewed:" + token, 0, -26);
+                    pipe.zincrby("viewed:", -1, item);
+                }
+                return added;
+            }
+        });
+    }
+
+    /**
+     * Chapter05.logRecentͬ
+     *
+     * @param batcher
+     * @param name
+     * @param message
+     * @param severity
+     * @return LPUSH֮бĳȣʱû޼
+     */
+    public CompletableFuture<Long> logRecent(
+        PipelineBatcher batcher, String name, String message, String severity)
+    {
+        final String destination = "recent:" + name + ':' + severity;
+        final String line;
+        //SimpleDateFormat̰߳ȫ
+        synchronized (Chapter05.TIMESTAMP) {
+            line = Chapter05.TIMESTAMP.format(new Date()) + ' ' + message;
+        }
+        return batcher.submit(new PipelineBatcher.Command<Long>() {
+            public Response<Long> queue(Pipeline pipe) {
+                Response<Long> length = pipe.lpush(destination, line);
+                pipe.ltrim(destination, 0, 99);
+                return length;
+            }
+        });
+    }
+
+    /**
+     * Chapter02.CleanSessionsThreadͬȡɾͨͣ
+     * ̵߳ɾͬһCommand
+     */
+    public class CleanSessionsThread
+        extends Thread
+    {
+        private final PipelineBatcher batcher;
+        private final int limit;
+        private volatile boolean quit;
+
+        public CleanSessionsThread(int limit, PipelineBatcher batcher) {
+            this.limit = limit;
+            this.batcher = batcher;
+        }
+
+        public void quit() {
+            quit = true;
+        }
+
+        public void run() {
+            try {
+                while (!quit) {
+                    //ҳĿǰƵƵδʱ
+                    long size = batcher.submit(new PipelineBatcher.Command<Long>() {
+                        public Response<Long> queue(Pipeline pipe) {
+                            return pipe.zcard("recent:");
+                        }
+                    }).get();
+                    if (size <= limit) {
+                        sleep(1000);
+                        continue;
+                    }
+
+                    final long endIndex = Math.min(size - limit, 100);
+                    Set<String> tokenSet = batcher.submit(new PipelineBatcher.Command<Set<String>>() {
+                        public Response<Set<String>> queue(Pipeline pipe) {
+                            return pipe.zrange("recent:", 0, (int)(endIndex - 1));
+                        }
+                    }).get();
+                    final String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
+                    final String[] sessionKeys = new String[tokens.length];
+                    for (int i = 0; i < tokens.length; i++) {
+                        sessionKeys[i] = "viewed:" + tokens[i];
+                    }
+
+                    //ƳɵЩƣȴɾ֮ټ
+                    batcher.submit(new PipelineBatcher.Command<Long>() {
+                        public Response<Long> queue(Pipeline pipe) {
+                            Response<Long> deleted = pipe.del(sessionKeys);
+                            for (String token : tokens) {
+                                pipe.hdel("login:", token);
+                                pipe.zrem("recent:", token);
+                            }
+                            return deleted;
+                        }
+                    }).get();
+                }
+            }catch(InterruptedException ie){
+                Thread.currentThread().interrupt();
+            }catch(ExecutionException ee){
+                throw new RuntimeException(ee.getCause());
+            }
+        }
+    }
+}
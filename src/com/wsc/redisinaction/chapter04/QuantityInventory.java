@@ -0,0 +1,246 @@
+package com.wsc.redisinaction.chapter04;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import com.wsc.redisinaction.util.LuaScript;
+import com.wsc.redisinaction.util.RedisInfo;
+
+/**
+ * ¼İг
+ *
+ * inventory:<user>ƷIDļϣͬһƷһҪһͬĳԱ
+ * listItemÿҲֻϼһΪɢУ
+ *   inventory:qty:<user>        ƷIDӳ
+ *   market:qty:                 ϼܵƷÿҵÿƷֻһԱֵǵ
+ *   market:qty:seller:<seller>  ĳҰϼܵƷԱͷֵmarket:qty:ͬ
+ *   market:qty:count:           гÿitemId.sellerIdʣ
+ * ϼܵƷŽmarket:market:seller:<seller>Chapter04.purchaseItem
+ * ScriptedMarketMatchingEngineƷһƳ˴
+ * ϼܺ͹ýűڷԭӵƶ
+ *
+ * @author wsc
+ *
+ */
+public class QuantityInventory {
+
+    public static void main(String[] args) {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        QuantityInventory inventory = new QuantityInventory();
+        inventory.testQuantityInventory(conn);
+        inventory.compareMemory(conn, 100, 10000);
+    }
+
+    public void testQuantityInventory(Jedis conn) {
+        System.out.println("\n----- testQuantityInventory -----");
+        addStock(conn, "userX", "itemX", 100);
+        assert getStock(conn, "userX", "itemX") == 100;
+
+        boolean l = listItem(conn, "itemX", "userX", 10, 30);
+        System.out.println("Listing 30 units succeeded? " + l);
+        assert l;
+        //ƷĹ·ϼܵƷ
+        assert conn.zscore("market:", "itemX.userX") == null;
+        assert getStock(conn, "userX", "itemX") == 70;
+        assert getListed(conn, "itemX", "userX") == 30;
+        assert !listItem(conn, "itemX", "userX", 10, 71);
+        //ͬһƷֻһ۸ٴϼʱۼ
+        assert !listItem(conn, "itemX", "userX", 12, 10);
+        boolean more = listItem(conn, "itemX", "userX", 10, 20);
+        assert more;
+        assert getListed(conn, "itemX", "userX") == 50;
+
+        conn.hset("users:userY", "funds", "125");
+        assert !purchaseItem(conn, "userY", "itemX", "userX", 10, 13);
+        assert !purchaseItem(conn, "userY", "itemX", "userX", 9, 1);
+        boolean p = purchaseItem(conn, "userY", "itemX", "userX", 10, 12);
+        System.out.println("Purchasing 12 units succeeded? " + p);
+        assert p;
+        assert "5".equals(conn.hget("users:userY", "funds"));
+        assert "120".equals(conn.hget("users:userX", "funds"));
+        assert getStock(conn, "userY", "itemX") == 12;
+        assert getListed(conn, "itemX", "userX") == 38;
+
+        //ȫ֮Ʒгʧ
+        conn.hset("users:userY", "funds", "1000");
+        boolean all = purchaseItem(conn, "userY", "itemX", "userX", 10, 38);
+        assert all;
+        assert getListed(conn, "itemX", "userX") == 0;
+        assert conn.zscore("market:qty:", "itemX.userX") == null;
+        assert conn.zscore("market:qty:seller:userX", "itemX.userX") == null;
+
+        //ͿۿʹͬһضϺĽ10.5 * 1210 * 12 = 120㣬125㹻
+        addStock(conn, "userX", "itemW", 12);
+        boolean w = listItem(conn, "itemW", "userX", 10.5, 12);
+        assert w;
+        conn.hset("users:userY", "funds", "125");
+        boolean truncated = purchaseItem(conn, "userY", "itemW", "userX", 10.5, 12);
+        assert truncated;
+        assert "5".equals(conn.hget("users:userY", "funds"));
+
+        conn.del("market:qty:", "market:qty:count:", "market:qty:seller:userX", "users:userX", "users:userY",
+            "inventory:qty:userX", "inventory:qty:userY");
+    }
+
+    /**
+     * ȽÿunitsͬƷʱϰռõڴ
+     *
+     * @param conn
+     * @param sellers
+     * @param units
+     */
+    public void compareMemory(Jedis conn, int sellers, int units) {
+        System.out.println("\n----- compareMemory -----");
+        long before = RedisInfo.usedMemory(conn);
+        for (int s = 0; s < sellers; s++) {
+            Pipeline pipe = conn.pipelined();
+            for (int u = 0; u < units; u++) {
+                //ͬƷòͬĳԱ
+                pipe.sadd("inventory:seller" + s, "itemX:" + u);
+            }
+            pipe.sync();
+        }
+        long set = RedisInfo.usedMemory(conn) - before;
+        for (int s = 0; s < sellers; s++) {
+            conn.del("inventory:seller" + s);
+        }
+
+        before = RedisInfo.usedMemory(conn);
+        Pipeline pipe = conn.pipelined();
+        for (int s = 0; s < sellers; s++) {
+            pipe.hincrBy("inventory:qty:seller" + s, "itemX", units);
+        }
+        pipe.sync();
+        long hash = RedisInfo.usedMemory(conn) - before;
+        for (int s = 0; s < sellers; s++) {
+            conn.del("inventory:qty:seller" + s);
+        }
+
+        System.out.println(String.format(
+            "%d sellers x %d units: set %.1f KB (%.1f bytes/seller), quantity %.1f KB (%.1f bytes/seller)",
+            sellers, units, set / 1024.0, set / (double)sellers, hash / 1024.0, hash / (double)sellers));
+    }
+
+    /**
+     * KEYS: inventory:qty:<seller>, market:qty:, market:qty:count:, market:qty:seller:<seller>
+     * ARGV: itemId.sellerId, itemId, price, quantity
+     */
+    private static final LuaScript LIST_ITEM = new LuaScript(
+        "local quantity = tonumber(ARGV[4]) " +
+        "local stock = tonumber(redis.call('hget', KEYS[1], ARGV[2])) " +
+        "if quantity <= 0 or not stock or stock < quantity then " +
+        "  return 0 " +
+        "end " +
+        "local listed = tonumber(redis.call('zscore', KEYS[2], ARGV[1])) " +
+        "if listed and listed ~= tonumber(ARGV[3]) then " +
+        "  return 0 " +
+        "end " +
+        "if stock == quantity then " +
+        "  redis.call('hdel', KEYS[1], ARGV[2]) " +
+        "else " +
+        "  redis.call('hincrby', KEYS[1], ARGV[2], -quantity) " +
+        "end " +
+        "redis.call('zadd', KEYS[2], ARGV[3], ARGV[1]) " +
+        "redis.call('zadd', KEYS[4], ARGV[3], ARGV[1]) " +
+        "redis.call('hincrby', KEYS[3], ARGV[1], quantity) " +
+        "return 1");
+
+    /**
+     * KEYS: market:qty:, market:qty:count:, users:<buyer>, users:<seller>, inventory:qty:<buyer>, market:qty:seller:<seller>
+     * ARGV: itemId.sellerId, itemId, lprice, quantity
+     * ѾǨƵյǮFixedPointMarket.CREDIT_FUNCTIONɷ
+     */
+    private static final LuaScript PURCHASE_ITEM = new LuaScript(
+        FixedPointMarket.CREDIT_FUNCTION +
+        "local quantity = tonumber(ARGV[4]) " +
+        "local price = tonumber(redis.call('zscore', KEYS[1], ARGV[1])) " +
+        "local listed = tonumber(redis.call('hget', KEYS[2], ARGV[1])) " +
+        "local funds = tonumber(redis.call('hget', KEYS[3], 'funds')) " +
+        "if quantity <= 0 or not price or price ~= tonumber(ARGV[3]) or not listed or listed < quantity or not funds then " +
+        "  return 0 " +
+        "end " +
+        //Chapter04һתˣ۵СֱصҲʵʿ۳Ľ
+        "local amount = (price >= 0 and math.floor(price) or math.ceil(price)) * quantity " +
+        "if amount > funds then " +
+        "  return 0 " +
+        "end " +
+        "if amount ~= 0 then " +
+        "  credit(KEYS[4], amount) " +
+        "  redis.call('hincrby', KEYS[3], 'funds', -amount) " +
+        "end " +
+        "redis.call('hincrby', KEYS[5], ARGV[2], quantity) " +
+        "if listed == quantity then " +
+        "  redis.call('hdel', KEYS[2], ARGV[1]) " +
+        "  redis.call('zrem', KEYS[1], ARGV[1]) " +
+        "  redis.call('zrem', KEYS[6], ARGV[1]) " +
+        "else " +
+        "  redis.call('hincrby', KEYS[2], ARGV[1], -quantity) " +
+        "end " +
+        "return 1");
+
+    /**
+     * ûİмɼƷ
+     *
+     * @param conn
+     * @param userId
+     * @param itemId
+     * @param quantity
+     * @return Ʒ
+     */
+    public long addStock(Jedis conn, String userId, String itemId, long quantity) {
+        return conn.hincrBy("inventory:qty:" + userId, itemId, quantity);
+    }
+
+    public long getStock(Jedis conn, String userId, String itemId) {
+        String stock = conn.hget("inventory:qty:" + userId, itemId);
+        return stock == null ? 0 : Long.parseLong(stock);
+    }
+
+    /**
+     * гҵƷʣ
+     */
+    public long getListed(Jedis conn, String itemId, String sellerId) {
+        String listed = conn.hget("market:qty:count:", itemId + '.' + sellerId);
+        return listed == null ? 0 : Long.parseLong(listed);
+    }
+
+    /**
+     * ҰеquantityƷŵг
+     *
+     * @param conn
+     * @param itemId
+     * @param sellerId
+     * @param price 
+     * @param quantity
+     * @return ҵƷѾһ۸ϼʱfalse
+     */
+    public boolean listItem(Jedis conn, String itemId, String sellerId, double price, long quantity) {
+        Object result = LIST_ITEM.call(conn, 4,
+            "inventory:qty:" + sellerId, "market:qty:", "market:qty:count:", "market:qty:seller:" + sellerId,
+            itemId + '.' + sellerId, itemId, String.valueOf(price), String.valueOf(quantity));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * гĳҵquantityƷ
+     *
+     * @param conn
+     * @param buyerId
+     * @param itemId
+     * @param sellerId
+     * @param lprice 
+     * @param quantity
+     * @return Ʒ۸仯ҵǮʱfalse
+     */
+    public boolean purchaseItem(
+        Jedis conn, String buyerId, String itemId, String sellerId, double lprice, long quantity)
+    {
+        Object result = PURCHASE_ITEM.call(conn, 6,
+            "market:qty:", "market:qty:count:", "users:" + buyerId, "users:" + sellerId,
+            "inventory:qty:" + buyerId, "market:qty:seller:" + sellerId,
+            itemId + '.' + sellerId, itemId, String.valueOf(lprice), String.valueOf(quantity));
+        return Long.valueOf(1).equals(result);
+    }
+}
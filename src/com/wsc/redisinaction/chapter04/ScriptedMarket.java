@@ -0,0 +1,123 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+
+import com.wsc.redisinaction.util.LuaScript;
+
+/**
+ * LuaűʵֵƷϼܺ͹
+ *
+ * Chapter04еʵҪWATCHȡMULTI/EXECӵļ仯ʱѭﷴԣ
+ * ʱ󲿷˷ѵűڷԭӵɼ޸ģ
+ * һܵõҪҲҪԡ
+ * ĲͷֵChapter04.listItemChapter04.purchaseItemֱͬ滻
+ *
+ * @author wsc
+ *
+ */
+public class ScriptedMarket {
+
+    public static void main(String[] args) {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        new ScriptedMarket().testScriptedMarket(conn);
+    }
+
+    public void testScriptedMarket(Jedis conn) {
+        System.out.println("\n----- testScriptedMarket -----");
+        conn.sadd("inventory:userX", "itemX");
+        boolean l = listItem(conn, "itemX", "userX", 10);
+        System.out.println("Listing the item succeeded? " + l);
+        assert l;
+        assert !listItem(conn, "itemX", "userX", 10);
+        assert conn.zscore("market:", "itemX.userX") == 10;
+
+        conn.hset("users:userY", "funds", "125");
+        assert !purchaseItem(conn, "userY", "itemX", "userX", 9);
+        boolean p = purchaseItem(conn, "userY", "itemX", "userX", 10);
+        System.out.println("Purchasing an item succeeded? " + p);
+        assert p;
+        Map<String,String> r = conn.hgetAll("users:userY");
+        System.out.println("Their money is now: " + r.get("funds"));
+        assert "115".equals(r.get("funds"));
+        assert "10".equals(conn.hget("users:userX", "funds"));
+        assert conn.sismember("inventory:userY", "itemX");
+        assert conn.zscore("market:", "itemX.userX") == null;
+        assert !purchaseItem(conn, "userY", "itemX", "userX", 10);
+
+        conn.del("market:", "market:seller:userX", "users:userX", "users:userY", "inventory:userX", "inventory:userY");
+    }
+
+    /**
+     * KEYS: inventory:<seller>, market:, market:seller:<seller>
+     * ARGV: itemId.sellerId, itemId, price
+     */
+    private static final LuaScript LIST_ITEM = new LuaScript(
+        "if redis.call('sismember', KEYS[1], ARGV[2]) == 0 then " +
+        "  return 0 " +
+        "end " +
+        "redis.call('zadd', KEYS[2], ARGV[3], ARGV[1]) " +
+        "redis.call('zadd', KEYS[3], ARGV[3], ARGV[1]) " +
+        "redis.call('srem', KEYS[1], ARGV[2]) " +
+        "return 1");
+
+    /**
+     * KEYS: market:, users:<buyer>, users:<seller>, inventory:<buyer>, market:seller:<seller>
+     * ARGV: itemId.sellerId, itemId, lprice
+     * ѾǨƵյǮFixedPointMarket.CREDIT_FUNCTIONɷ
+     */
+    private static final LuaScript PURCHASE_ITEM = new LuaScript(
+        FixedPointMarket.CREDIT_FUNCTION +
+        "local price = tonumber(redis.call('zscore', KEYS[1], ARGV[1])) " +
+        "local funds = tonumber(redis.call('hget', KEYS[2], 'funds')) " +
+        "if not price or price ~= tonumber(ARGV[3]) or not funds or price > funds then " +
+        "  return 0 " +
+        "end " +
+        //Chapter04һתˣСֱص
+        "local amount = price >= 0 and math.floor(price) or math.ceil(price) " +
+        "if amount ~= 0 then " +
+        "  credit(KEYS[3], amount) " +
+        "  redis.call('hincrby', KEYS[2], 'funds', -amount) " +
+        "end " +
+        "redis.call('sadd', KEYS[4], ARGV[2]) " +
+        "redis.call('zrem', KEYS[1], ARGV[1]) " +
+        "redis.call('zrem', KEYS[5], ARGV[1]) " +
+        "return 1");
+
+    /**
+     * ҰеƷŵг
+     *
+     * @param conn
+     * @param itemId
+     * @param sellerId
+     * @param price
+     * @return ûƷʱfalse
+     */
+    public boolean listItem(Jedis conn, String itemId, String sellerId, double price) {
+        Object result = LIST_ITEM.call(conn, 3,
+            "inventory:" + sellerId, "market:", "market:seller:" + sellerId,
+            itemId + '.' + sellerId, itemId, String.valueOf(price));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * гϵƷ
+     *
+     * @param conn
+     * @param buyerId
+     * @param itemId
+     * @param sellerId
+     * @param lprice
+     * @return ƷѾгϡ۸仯ҵǮʱfalse
+     */
+    public boolean purchaseItem(Jedis conn, String buyerId, String itemId, String sellerId, double lprice) {
+        Object result = PURCHASE_ITEM.call(conn, 5,
+            "market:", "users:" + buyerId, "users:" + sellerId, "inventory:" + buyerId,
+            "market:seller:" + sellerId,
+            itemId + '.' + sellerId, itemId, String.valueOf(lprice));
+        return Long.valueOf(1).equals(result);
+    }
+}
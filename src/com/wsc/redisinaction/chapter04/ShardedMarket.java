@@ -0,0 +1,356 @@
+package com.wsc.redisinaction.chapter04;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+
+import com.wsc.redisinaction.benchmark.LoadGenerator;
+import com.wsc.redisinaction.util.TransactionRunner;
+
+/**
+ * ƬƷг
+ *
+ * Chapter04.purchaseItemmarket:򼯺ϣгκһϼܻ߹򶼻
+ * ڽеĹʧܲԣԶʱͻ
+ * ﰴƷitemId.sellerIdɢֵгֳshards򼯺market:<n>
+ * ʱֻƷڵķƬͬƬϵĽ׻š
+ * ֻ1ƬʱȻʹmarket:ԭʵȫͬ
+ * гʱÿƬάһα꣬۸ҳ鲢һͼ
+ *
+ * @author wsc
+ *
+ */
+public class ShardedMarket {
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        new ShardedMarket(8).testShardedMarket(conn);
+        benchmarkShardContention(new int[]{1, 2, 4, 8, 16}, 16);
+    }
+
+    private static final Comparator<Tuple> BY_PRICE = new Comparator<Tuple>() {
+        public int compare(Tuple a, Tuple b) {
+            int cmp = Double.compare(a.getScore(), b.getScore());
+            return cmp != 0 ? cmp : a.getElement().compareTo(b.getElement());
+        }
+    };
+
+    private final int shards;
+    private final TransactionRunner runner = new TransactionRunner();
+
+    public ShardedMarket(int shards) {
+        this.shards = shards;
+    }
+
+    public void testShardedMarket(Jedis conn) {
+        System.out.println("\n----- testShardedMarket -----");
+        conn.hset("users:userY", "funds", "125");
+        for (int i = 0; i < 20; i++) {
+            conn.sadd("inventory:userX", "item" + i);
+            boolean l = listItem(conn, "item" + i, "userX", 20 - i);
+            assert l;
+        }
+        System.out.println("Items are spread over the shards:");
+        for (int shard = 0; shard < shards; shard++) {
+            System.out.println("  " + shardKey(shard) + ": " + conn.zcard(shardKey(shard)));
+        }
+
+        List<Tuple> cheapest = getItems(conn, 0, 5);
+        System.out.println("The cheapest items in the merged view:");
+        for (Tuple tuple : cheapest) {
+            System.out.println("  " + tuple.getElement() + ", " + tuple.getScore());
+        }
+        assert cheapest.size() == 5;
+        assert "item19.userX".equals(cheapest.get(0).getElement());
+        assert getItems(conn, 5, 100).size() == 15;
+
+        boolean p = purchaseItem(conn, "userY", "item19", "userX", 1);
+        System.out.println("Purchasing an item succeeded? " + p);
+        assert p;
+        assert conn.sismember("inventory:userY", "item19");
+        assert conn.zscore(shardKey("item19.userX"), "item19.userX") == null;
+        assert !purchaseItem(conn, "userY", "item19", "userX", 1);
+
+        for (int shard = 0; shard < shards; shard++) {
+            conn.del(shardKey(shard));
+        }
+        conn.del("market:seller:userX", "users:userX", "users:userY", "inventory:userX", "inventory:userY");
+    }
+
+    /**
+     * ƷڷƬļ
+     *
+     * @param item itemId.sellerId
+     * @return
+     */
+    public String shardKey(String item) {
+        return shardKey((item.hashCode() & 0x7fffffff) % shards);
+    }
+
+    private String shardKey(int shard) {
+        return shards == 1 ? "market:" : "market:" + shard;
+    }
+
+    public long getWatchAborts() {
+        return runner.getAborts();
+    }
+
+    /**
+     * Chapter04.listItemֻͬƷӵڵķƬ
+     *
+     * @param conn
+     * @param itemId
+     * @param sellerId
+     * @param price
+     * @return
+     */
+    public boolean listItem(Jedis conn, final String itemId, String sellerId, final double price) {
+        final String inventory = "inventory:" + sellerId;
+        final String item = itemId + '.' + sellerId;
+        final String sellerIndex = "market:seller:" + sellerId;
+
+        return runner.run(conn, "market.listItem", 5000, new TransactionRunner.Operation<Boolean>() {
+            public boolean read(Jedis conn) {
+                return conn.sismember(inventory, itemId);
+            }
+
+            public void write(Transaction trans) {
+                trans.zadd(shardKey(item), price, item);
+                trans.zadd(sellerIndex, price, item);
+                trans.srem(inventory, itemId);
+            }
+
+            public Boolean done(List<Object> results) {
+                return true;
+            }
+
+            public Boolean rejected() {
+                return false;
+            }
+        }, inventory);
+    }
+
+    /**
+     * Chapter04.purchaseItemֻֻͬƷڵķƬҺ
+     *
+     * @param conn
+     * @param buyerId
+     * @param itemId
+     * @param sellerId
+     * @param lprice
+     * @return
+     */
+    public boolean purchaseItem(
+        Jedis conn, String buyerId, final String itemId, String sellerId, final double lprice)
+    {
+        final String buyer = "users:" + buyerId;
+        final String seller = "users:" + sellerId;
+        final String item = itemId + '.' + sellerId;
+        final String inventory = "inventory:" + buyerId;
+        final String market = shardKey(item);
+        final String sellerIndex = "market:seller:" + sellerId;
+
+        return runner.run(conn, "market.purchaseItem", 10000, new TransactionRunner.Operation<Boolean>() {
+            private Double price;
+            private boolean sellerMigrated;
+
+            public boolean read(Jedis conn) {
+                price = conn.zscore(market, item);
+                //ûfundsֶεңʽѾǨƵfunds_minorΪʽ㣬ִȡ
+                String funds = conn.hget(buyer, "funds");
+                sellerMigrated = FixedPointMarket.isMigrated(conn, seller);
+                return price != null && funds != null && price == lprice && price <= Double.parseDouble(funds);
+            }
+
+            public void write(Transaction trans) {
+                FixedPointMarket.credit(trans, seller, sellerMigrated, price.intValue());
+                trans.hincrBy(buyer, "funds", -price.intValue());
+                trans.sadd(inventory, itemId);
+                trans.zrem(market, item);
+                trans.zrem(sellerIndex, item);
+            }
+
+            public Boolean done(List<Object> results) {
+                return true;
+            }
+
+            public Boolean rejected() {
+                return false;
+            }
+        }, market, buyer, seller);
+    }
+
+    /**
+     * ۸ӵ͵г
+     * ÿƬԼα꣬ÿֻȡһҳƷĳƬһҳ鲢֮ȡһҳ
+     * ܹȡƷԼΪoffset+countÿƬһҳÿƬȡoffset+count
+     * ҳڲͬʱ̶ȡڼ䷢ϼܺ͹ͼظƷ
+     *
+     * @param conn
+     * @param offset
+     * @param count
+     * @return
+     */
+    public List<Tuple> getItems(Jedis conn, int offset, int count) {
+        List<Tuple> items = new ArrayList<Tuple>();
+        if (count <= 0) {
+            return items;
+        }
+        int pageSize = Math.max(count, 10);
+        //ÿƬѾȡûй鲢ƷԼһҳʼ-1ʾƬѾ
+        List<List<Tuple>> pages = new ArrayList<List<Tuple>>();
+        int[] cursors = new int[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            pages.add(new ArrayList<Tuple>());
+        }
+
+        int skipped = 0;
+        while (items.size() < count) {
+            //ȡѾ鲢ꡢûжķƬһҳ
+            Pipeline pipe = null;
+            Response<?>[] responses = new Response<?>[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                if (pages.get(shard).isEmpty() && cursors[shard] >= 0) {
+                    if (pipe == null) {
+                        pipe = conn.pipelined();
+                    }
+                    responses[shard] = pipe.zrangeWithScores(
+                        shardKey(shard), cursors[shard], cursors[shard] + pageSize - 1);
+                }
+            }
+            if (pipe != null) {
+                pipe.sync();
+                for (int shard = 0; shard < shards; shard++) {
+                    if (responses[shard] == null) {
+                        continue;
+                    }
+                    @SuppressWarnings("unchecked")
+                    Set<Tuple> page = (Set<Tuple>)responses[shard].get();
+                    pages.get(shard).addAll(page);
+                    cursors[shard] = page.size() < pageSize ? -1 : cursors[shard] + pageSize;
+                }
+            }
+
+            //ȡƬǰ˵ƷֱĳƬһҳ
+            int best = -1;
+            for (int shard = 0; shard < shards; shard++) {
+                List<Tuple> page = pages.get(shard);
+                if (!page.isEmpty() && (best < 0 || BY_PRICE.compare(page.get(0), pages.get(best).get(0)) < 0)) {
+                    best = shard;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            Tuple next = pages.get(best).remove(0);
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                items.add(next);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * market:еƷᵽƬ
+     *
+     * @param conn
+     * @return ƵƷ
+     */
+    public int migrate(Jedis conn) {
+        if (shards == 1) {
+            return 0;
+        }
+        Set<Tuple> items = conn.zrangeWithScores("market:", 0, -1);
+        Pipeline pipe = conn.pipelined();
+        for (Tuple tuple : items) {
+            pipe.zadd(shardKey(tuple.getElement()), tuple.getScore(), tuple.getElement());
+            pipe.zrem("market:", tuple.getElement());
+        }
+        pipe.sync();
+        return items.size();
+    }
+
+    /**
+     * ڲͬķƬ²ƷȽWATCHֹĴ
+     *
+     * @param shardCounts
+     * @param threads
+     * @throws InterruptedException
+     */
+    public static void benchmarkShardContention(int[] shardCounts, int threads)
+        throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkShardContention -----");
+        LoadGenerator generator = new LoadGenerator();
+        generator.setThreads(threads);
+        generator.setRate(0);
+        generator.setDurationMillis(5000);
+        generator.setWarmupMillis(1000);
+
+        List<LoadGenerator.LoadResult> results = new ArrayList<LoadGenerator.LoadResult>();
+        for (int shards : shardCounts) {
+            results.add(generator.run(purchaseScenario(new ShardedMarket(shards))));
+        }
+        LoadGenerator.printResults(results);
+    }
+
+    /**
+     * ҲƷĳɹϼܣʹгȶ
+     *
+     * @param market
+     * @return
+     */
+    public static LoadGenerator.Scenario purchaseScenario(final ShardedMarket market) {
+        final AtomicLong sequence = new AtomicLong();
+        return new LoadGenerator.Scenario("market.purchase.shards=" + market.shards) {
+            public void setup(Jedis conn, int keys) {
+                conn.hset("users:seller", "funds", "0");
+                for (int i = 0; i < 100; i++) {
+                    conn.hset("users:buyer" + i, "funds", "1000000000");
+                }
+                Pipeline pipe = conn.pipelined();
+                for (int i = 0; i < keys; i++) {
+                    String item = "item" + i + ".seller";
+                    pipe.zadd(market.shardKey(item), 10, item);
+                }
+                pipe.sync();
+            }
+            public boolean execute(Jedis conn, int key) {
+                String buyer = "buyer" + (sequence.incrementAndGet() % 100);
+                if (!market.purchaseItem(conn, buyer, "item" + key, "seller", 10)) {
+                    return false;
+                }
+                String item = "item" + key + ".seller";
+                conn.zadd(market.shardKey(item), 10, item);
+                return true;
+            }
+            public long getAborts() {
+                return market.getWatchAborts();
+            }
+            public void teardown(Jedis conn) {
+                for (int shard = 0; shard < market.shards; shard++) {
+                    conn.del(market.shardKey(shard));
+                }
+                Set<String> keys = conn.keys("users:*");
+                keys.addAll(conn.keys("inventory:*"));
+                if (keys.size() > 0) {
+                    conn.del(keys.toArray(new String[keys.size()]));
+                }
+            }
+        };
+    }
+}
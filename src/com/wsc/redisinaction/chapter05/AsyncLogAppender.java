@@ -0,0 +1,541 @@
+package com.wsc.redisinaction.chapter05;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import redis.clients.jedis.Jedis;
+
+import com.wsc.redisinaction.util.MultiValuePipeline;
+
+/**
+ * 첽д־׷
+ *
+ * Chapter05.logRecentÿдһ־Ҫڵ߳ϵһLPUSHLTRIM
+ * ʱ¼־ͳƿlogRecentֻ־зŽһнλ
+ * ɺ̨߳ȡĿб飬ÿˢ¶ÿбֻһֵLPUSHһLTRIM
+ * бֻµ100Уһˢͬһб100ʱֱͨgetTrimmed()ȡ
+ *
+ * ʱĴʽOverflowPolicyͨgetDropped()ȡ
+ * ӳʱ̶̨߳һȻԵļӣֹ̨֮߳ͣ
+ * ڻк֮ŽжΪlogRecentٵȴ
+ *
+ * @author wsc
+ *
+ */
+public class AsyncLogAppender {
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testAsyncLogAppender(conn);
+        benchmarkLogRecent(conn, 8, 200000);
+    }
+
+    /**
+     * ʱδµ־
+     */
+    public enum OverflowPolicy {
+        /** ɵһУΪµһڳλ */
+        DROP_OLDEST,
+        /** ̵߳ȴֱпλκһ */
+        BLOCK,
+        /** һʱÿsampleRateֻһУʱµһ */
+        SAMPLE
+    }
+
+    /** ÿбChapter05.logRecentͬ */
+    private static final int KEEP = 100;
+    /** ӵ */
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    private final RingBuffer<Line> ring;
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+    private final int maxBatch;
+    private final DrainThread thread = new DrainThread();
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong trimmed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile boolean quit;
+    private volatile boolean stopped;
+
+    public AsyncLogAppender() {
+        this(OverflowPolicy.DROP_OLDEST, 65536, 10, 1000);
+    }
+
+    /**
+     * @param policy
+     * @param capacity ܷµᱻȡΪ2
+     * @param sampleRate SAMPLEÿбһ
+     * @param maxBatch һˢȡ
+     */
+    public AsyncLogAppender(OverflowPolicy policy, int capacity, int sampleRate, int maxBatch) {
+        this(policy, capacity, sampleRate, maxBatch, true);
+    }
+
+    /**
+     * @param start Ϊfalseʱ̨̣߳ԿȰѻд
+     */
+    AsyncLogAppender(OverflowPolicy policy, int capacity, int sampleRate, int maxBatch, boolean start) {
+        this.ring = new RingBuffer<Line>(capacity);
+        this.policy = policy;
+        this.sampleRate = sampleRate;
+        this.maxBatch = maxBatch;
+        thread.setDaemon(true);
+        if (start) {
+            thread.start();
+        }
+    }
+
+    public static void testAsyncLogAppender(Jedis conn)
+        throws InterruptedException
+    {
+        System.out.println("\n----- testAsyncLogAppender -----");
+        AsyncLogAppender appender = new AsyncLogAppender();
+        for (int i = 0; i < 150; i++) {
+            appender.logRecent("test", "this is message " + i);
+        }
+        appender.logRecent("test", "something went wrong", Chapter05.ERROR);
+        appender.close();
+        //close()֮󻺳ÿһҪôд룬ҪôΪKEEP
+        assert appender.getWritten() + appender.getTrimmed() == 151;
+        boolean closed = false;
+        try {
+            appender.logRecent("test", "too late");
+        }catch(IllegalStateException ise){
+            closed = true;
+        }
+        assert closed;
+
+        List<String> recent = conn.lrange("recent:test:info", 0, -1);
+        System.out.println("The recent log has " + recent.size() + " messages, newest: " + recent.get(0));
+        assert recent.size() == 100;
+        assert recent.get(0).endsWith("this is message 149");
+        assert recent.get(99).endsWith("this is message 50");
+        assert conn.llen("recent:test:error") == 1;
+        assert appender.getDropped() == 0;
+
+        //̨̻߳ûʱд4еĻDROP_OLDESTµ4
+        appender = new AsyncLogAppender(OverflowPolicy.DROP_OLDEST, 4, 2, 1000, false);
+        for (int i = 0; i < 10; i++) {
+            boolean accepted = appender.logRecent("overflow", "line " + i);
+            assert accepted;
+        }
+        assert appender.getDropped() == 6;
+        appender.thread.start();
+        appender.close();
+        recent = conn.lrange("recent:overflow:info", 0, -1);
+        System.out.println("DROP_OLDEST kept " + recent.size() + " lines, dropped " + appender.getDropped());
+        assert recent.size() == 4;
+        assert recent.get(0).endsWith("line 9");
+        assert recent.get(3).endsWith("line 6");
+        assert appender.getWritten() == 4;
+
+        //SAMPLEڻһ֮ÿ2б1Уʱµ
+        conn.del("recent:overflow:info");
+        appender = new AsyncLogAppender(OverflowPolicy.SAMPLE, 4, 2, 1000, false);
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (appender.logRecent("overflow", "line " + i)) {
+                accepted++;
+            }
+        }
+        assert accepted == 4;
+        assert appender.getDropped() == 6;
+        appender.thread.start();
+        appender.close();
+        recent = conn.lrange("recent:overflow:info", 0, -1);
+        System.out.println("SAMPLE kept " + recent.size() + " lines, dropped " + appender.getDropped());
+        assert recent.size() == 4;
+        assert recent.get(0).endsWith("line 4");
+        assert recent.get(1).endsWith("line 2");
+
+        conn.del("recent:test:info", "recent:test:error", "recent:overflow:info");
+    }
+
+    /**
+     * ߳ͬʱд־ȽChapter05.logRecent첽׷ÿܼ¼
+     *
+     * @param conn
+     * @param threads
+     * @param lines ÿ߳д
+     * @throws InterruptedException
+     */
+    public static void benchmarkLogRecent(Jedis conn, int threads, final int lines)
+        throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkLogRecent -----");
+        final Chapter05 ch05 = new Chapter05();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final String name = "bench" + t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Jedis conn = new Jedis("localhost");
+                    conn.select(15);
+                    for (int i = 0; i < lines / 100; i++) {
+                        //Chapter05.logRecentֻдٷ֮һ
+                        ch05.logRecent(conn, name, "error " + i, Chapter05.ERROR);
+                    }
+                    conn.disconnect();
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        System.out.println(String.format("Chapter05.logRecent: %.0f lines/s", threads * (lines / 100) / seconds));
+
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            final AsyncLogAppender appender = new AsyncLogAppender(policy, 65536, 10, 1000);
+            start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final String name = "bench" + t;
+                workers[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < lines; i++) {
+                            appender.logRecent(name, "error " + i, Chapter05.ERROR);
+                        }
+                    }
+                };
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double appendSeconds = (System.nanoTime() - start) / 1000000000.0;
+            appender.close();
+            seconds = (System.nanoTime() - start) / 1000000000.0;
+            System.out.println(String.format(
+                "AsyncLogAppender %-11s: %.0f lines/s appended, %.0f lines/s written, dropped=%d, trimmed=%d, %d flushes",
+                policy, threads * lines / appendSeconds, appender.getWritten() / seconds,
+                appender.getDropped(), appender.getTrimmed(), appender.getFlushes()));
+        }
+
+        for (int t = 0; t < threads; t++) {
+            conn.del("recent:bench" + t + ":error");
+        }
+    }
+
+    public boolean logRecent(String name, String message) {
+        return logRecent(name, message, Chapter05.INFO);
+    }
+
+    /**
+     * һ־Žȴд
+     *
+     * @param name
+     * @param message
+     * @param severity
+     * @return һбߺ̨߳Ѿֹͣʱfalse
+     * @throws IllegalStateException Ѿùclose()
+     */
+    public boolean logRecent(String name, String message, String severity) {
+        if (quit) {
+            throw new IllegalStateException("AsyncLogAppender is closed");
+        }
+        Line line = new Line("recent:" + name + ':' + severity, System.currentTimeMillis(), message);
+        appended.incrementAndGet();
+        if (stopped) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        switch (policy) {
+        case DROP_OLDEST:
+            while (!ring.offer(line)) {
+                if (ring.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+            break;
+        case BLOCK:
+            while (!ring.offer(line)) {
+                if (stopped) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(50000);
+            }
+            break;
+        default:
+            if (ring.size() > ring.capacity() / 2 && sampled.incrementAndGet() % sampleRate != 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (!ring.offer(line)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        //̨߳ڼֹ֮ͣʱһջη룬ղΪ
+        if (stopped) {
+            dropRemaining();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * ȡʣµУΪ
+     */
+    private void dropRemaining() {
+        while (ring.poll() != null) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * д뻺ʣµУȻֹ̨ͣ߳
+     *
+     * @throws InterruptedException
+     */
+    public void close()
+        throws InterruptedException
+    {
+        quit = true;
+        thread.join();
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    /**
+     * Ϊдߺֹ̨߳ͣûд
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * һˢͬһбKEEPСûз;ͱ
+     */
+    public long getTrimmed() {
+        return trimmed.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    private static class Line {
+        private final String destination;
+        private final long time;
+        private final String message;
+
+        private Line(String destination, long time, String message) {
+            this.destination = destination;
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    private class DrainThread
+        extends Thread
+    {
+        public void run() {
+            Jedis conn = null;
+            try {
+                conn = drain();
+            } finally {
+                //stopped֮ŽlogRecentԼ
+                stopped = true;
+                dropRemaining();
+                if (conn != null) {
+                    disconnect(conn);
+                }
+            }
+        }
+
+        /**
+         * һֱȡд־Уֱclose()֮󻺳Ϊ
+         *
+         * @return ʹõӣûʱؿֵ
+         */
+        private Jedis drain() {
+            Jedis conn = null;
+            //SimpleDateFormat̰߳ȫģ̨߳ʹԼĸ
+            SimpleDateFormat timestamp = (SimpleDateFormat)Chapter05.TIMESTAMP.clone();
+            List<Line> batch = new ArrayList<Line>();
+            long backoff = 0;
+
+            while (true) {
+                boolean closing = quit;
+                Line line;
+                while (batch.size() < maxBatch && (line = ring.poll()) != null) {
+                    batch.add(line);
+                }
+                if (batch.isEmpty()) {
+                    if (closing) {
+                        return conn;
+                    }
+                    LockSupport.parkNanos(1000000);
+                    continue;
+                }
+                if (conn == null) {
+                    conn = connect();
+                }
+                if (conn != null) {
+                    try {
+                        flush(conn, timestamp, batch);
+                        backoff = 0;
+                    } catch (RuntimeException e) {
+                        disconnect(conn);
+                        conn = null;
+                    }
+                }
+                if (conn == null) {
+                    //дʧܻϵһΪرʱԣʣµrun()мΪ
+                    dropped.addAndGet(batch.size());
+                    batch.clear();
+                    if (closing) {
+                        return null;
+                    }
+                    backoff = Math.min(Math.max(backoff * 2, 10), MAX_BACKOFF_MILLIS);
+                    LockSupport.parkNanos(backoff * 1000000);
+                    continue;
+                }
+                batch.clear();
+            }
+        }
+
+        private Jedis connect() {
+            Jedis conn = new Jedis("localhost");
+            try {
+                conn.select(15);
+                return conn;
+            } catch (RuntimeException e) {
+                disconnect(conn);
+                return null;
+            }
+        }
+
+        private void disconnect(Jedis conn) {
+            try {
+                conn.disconnect();
+            } catch (RuntimeException e) {
+                //ѾˣԹرʱĴ
+            }
+        }
+
+        private void flush(Jedis conn, SimpleDateFormat timestamp, List<Line> batch) {
+            Map<String,List<String>> grouped = new LinkedHashMap<String,List<String>>();
+            for (Line line : batch) {
+                List<String> lines = grouped.get(line.destination);
+                if (lines == null) {
+                    lines = new ArrayList<String>();
+                    grouped.put(line.destination, lines);
+                }
+                lines.add(timestamp.format(new Date(line.time)) + ' ' + line.message);
+            }
+
+            MultiValuePipeline pipe = new MultiValuePipeline(conn);
+            int sent = 0;
+            for (Map.Entry<String,List<String>> entry : grouped.entrySet()) {
+                List<String> lines = entry.getValue();
+                //ֻµKEEPлб
+                List<String> kept = lines.subList(Math.max(0, lines.size() - KEEP), lines.size());
+                pipe.lpush(entry.getKey(), kept.toArray(new String[kept.size()]));
+                pipe.ltrim(entry.getKey(), 0, KEEP - 1);
+                sent += kept.size();
+            }
+            pipe.sync();
+            flushes.incrementAndGet();
+            written.addAndGet(sent);
+            trimmed.addAndGet(batch.size() - sent);
+        }
+    }
+
+    /**
+     * нĶ߶ζС
+     * ÿλһţߺͨCASƽβͷλã
+     * ٸݲλжϲλǷдɶDROP_OLDESTҲpoll()
+     */
+    static class RingBuffer<E> {
+        private final AtomicReferenceArray<E> items;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        RingBuffer(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            items = new AtomicReferenceArray<E>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            mask = size - 1;
+        }
+
+        boolean offer(E item) {
+            while (true) {
+                long pos = tail.get();
+                int index = (int)(pos & mask);
+                long diff = sequences.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        items.set(index, item);
+                        sequences.set(index, pos + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    //λһֵԪػûбȡߣ
+                    return false;
+                }
+            }
+        }
+
+        E poll() {
+            while (true) {
+                long pos = head.get();
+                int index = (int)(pos & mask);
+                long diff = sequences.get(index) - (pos + 1);
+                if (diff == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        E item = items.get(index);
+                        items.set(index, null);
+                        sequences.set(index, pos + mask + 1);
+                        return item;
+                    }
+                } else if (diff < 0) {
+                    //λûбд룬Ϊ
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * ƵԪ
+         */
+        int size() {
+            return (int)Math.max(0, tail.get() - head.get());
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.wsc.redisinaction.chapter05;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import com.wsc.redisinaction.util.RedisInfo;
+
+/**
+ * ڱػĶྫȼ
+ *
+ * Chapter05.updateCounterÿμһҪִһ14MULTI
+ * ÿһZADD known:һHINCRBYÿ(, , ʱƬ)ֻӦһAtomicLong
+ * ֻڱۼӣ̨߳ÿflushMillisȡһˮ߷HINCRBY
+ * RedisеļflushMillisһˢµʱ䣩
+ * ÿʱƬһдʱHINCRBY֮ZADD known:CleanCountersThreadCounterCleaner
+ * ɾ˿еļ֮µʱƬע᣻߳ɢȻΪʱɾ
+ * WATCH߽űHINCRBYZADD֮䲻ɾûļ
+ *
+ * ˢʱӳһԣˮ߿Ѿִһ֣Իظ
+ * getLost()̨߳ӳ֮Եļӣ
+ * رʱȻRedisĻʣµҲgetLost()
+ *
+ * @author wsc
+ *
+ */
+public class BufferedCounters {
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testBufferedCounters(conn);
+        benchmarkUpdateCounter(conn, 8, 20000);
+    }
+
+    private final ConcurrentHashMap<Key,AtomicLong> counts = new ConcurrentHashMap<Key,AtomicLong>();
+    //ѾZADD known:ʱƬֻflushз
+    private final Set<Key> registered = new HashSet<Key>();
+    private final long flushMillis;
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong increments = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private FlushThread thread;
+
+    /** ӵ */
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+
+    public BufferedCounters() {
+        this(1000);
+    }
+
+    /**
+     * @param flushMillis ˢ֮ʱ䣬ҲRedisеļʱ
+     */
+    public BufferedCounters(long flushMillis) {
+        this.flushMillis = flushMillis;
+    }
+
+    public static void testBufferedCounters(Jedis conn) {
+        System.out.println("\n----- testBufferedCounters -----");
+        BufferedCounters counters = new BufferedCounters();
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < 10; i++) {
+            int count = (int)(Math.random() * 5) + 1;
+            total += count;
+            counters.updateCounter("test", count, now + i);
+        }
+
+        int sent = counters.flush(conn);
+        System.out.println("HINCRBY calls for 10 updates: " + sent);
+        //10ÿʱƬ23ÿ5ʱƬľ2
+        assert sent <= 10 + 3 + 2 * 5;
+        assert conn.zscore("known:", "1:test") == 0;
+        assert conn.zscore("known:", "86400:test") == 0;
+        assert conn.hlen("count:1:test") == 10;
+
+        long sum = 0;
+        for (String value : conn.hvals("count:5:test")) {
+            sum += Long.parseLong(value);
+        }
+        assert sum == total;
+
+        //ۼѾдļϣѾעֲZADD known:
+        counters.updateCounter("test", 3, now);
+        long before = RedisInfo.commandsProcessed(conn);
+        sent = counters.flush(conn);
+        //ˮ߼INFOԼ
+        long commands = RedisInfo.commandsProcessed(conn) - before;
+        assert sent == Chapter05.PRECISION.length;
+        assert commands == Chapter05.PRECISION.length + 1;
+        assert counters.flush(conn) == 0;
+
+        //߳ɾ˿еļ֮µʱƬעᵽknown:
+        conn.zrem("known:", "1:test");
+        conn.del("count:1:test");
+        counters.updateCounter("test", 1, now + 20);
+        counters.flush(conn);
+        assert conn.zscore("known:", "1:test") == 0;
+        assert conn.hlen("count:1:test") == 1;
+
+        Set<String> keys = conn.keys("count:*:test");
+        keys.add("known:");
+        conn.del(keys.toArray(new String[keys.size()]));
+    }
+
+    /**
+     * ߳ͬʱͬһȽChapter05.updateCounterͻ֮
+     * ÿĸ´Լ
+     *
+     * @param conn
+     * @param threads
+     * @param updates ÿ̵߳ĸ´
+     * @throws InterruptedException
+     */
+    public static void benchmarkUpdateCounter(Jedis conn, int threads, final int updates)
+        throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkUpdateCounter -----");
+        final Chapter05 ch05 = new Chapter05();
+        final BufferedCounters counters = new BufferedCounters(100);
+
+        for (int round = 0; round < 2; round++) {
+            final boolean buffered = round == 1;
+            if (buffered) {
+                counters.start();
+            }
+            long commands = RedisInfo.commandsProcessed(conn);
+            long start = System.nanoTime();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread() {
+                    public void run() {
+                        Jedis conn = buffered ? null : new Jedis("localhost");
+                        if (conn != null) {
+                            conn.select(15);
+                        }
+                        for (int i = 0; i < updates; i++) {
+                            if (buffered) {
+                                counters.updateCounter("bench", 1);
+                            } else {
+                                ch05.updateCounter(conn, "bench", 1);
+                            }
+                        }
+                        if (conn != null) {
+                            conn.disconnect();
+                        }
+                    }
+                };
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (buffered) {
+                counters.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            commands = RedisInfo.commandsProcessed(conn) - commands;
+            System.out.println(String.format("%-24s %.0f updates/s, %d commands",
+                buffered ? "BufferedCounters" : "Chapter05.updateCounter", threads * updates / seconds, commands));
+
+            Set<String> keys = conn.keys("count:*:bench");
+            keys.add("known:");
+            conn.del(keys.toArray(new String[keys.size()]));
+        }
+    }
+
+    public void updateCounter(String name, int count) {
+        updateCounter(name, count, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * ѼӵÿȵıۼϣChapter05.updateCounterĲͬ
+     *
+     * @param name
+     * @param count
+     * @param now Ϊλʱ
+     */
+    public void updateCounter(String name, int count, long now) {
+        for (int prec : Chapter05.PRECISION) {
+            Key key = new Key(prec, name, (now / prec) * prec);
+            AtomicLong counter = counts.get(key);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = counts.putIfAbsent(key, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.addAndGet(count);
+        }
+        updates.incrementAndGet();
+    }
+
+    /**
+     * ÿflushMillisˢһεĺ̨߳
+     */
+    public void start() {
+        thread = new FlushThread();
+        thread.start();
+    }
+
+    /**
+     * ֹ̨̣ͣ߳ˢʣµ
+     *
+     * @throws InterruptedException
+     */
+    public void close()
+        throws InterruptedException
+    {
+        if (thread != null) {
+            thread.quit();
+            thread.join();
+            thread = null;
+        }
+    }
+
+    /**
+     * һˮ߰едRedis
+     * getAndSet(0)ԭӵȡͲupdateCounter֮䲻ᶪʧ
+     *
+     * @param conn
+     * @return ͵HINCRBY
+     */
+    public synchronized int flush(Jedis conn) {
+        long now = System.currentTimeMillis() / 1000;
+        Map<Key,Long> deltas = new HashMap<Key,Long>();
+        for (Map.Entry<Key,AtomicLong> entry : counts.entrySet()) {
+            Key key = entry.getKey();
+            long delta = entry.getValue().getAndSet(0);
+            if (delta != 0) {
+                deltas.put(key, delta);
+            }
+            //ʱƬһ֮󲻻µļȡ֮ɾ
+            if (key.bucket + key.prec < now - 60 && entry.getValue().get() == 0
+                && counts.remove(key, entry.getValue()))
+            {
+                registered.remove(key);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return 0;
+        }
+
+        List<Key> created = new ArrayList<Key>();
+        Pipeline pipe = conn.pipelined();
+        for (Map.Entry<Key,Long> entry : deltas.entrySet()) {
+            Key key = entry.getKey();
+            pipe.hincrBy("count:" + key.prec + ':' + key.name, String.valueOf(key.bucket), entry.getValue());
+            //дעᣬɢѾΪգ̲֮߳ɾ
+            if (registered.add(key)) {
+                created.add(key);
+                pipe.zadd("known:", 0, String.valueOf(key.prec) + ':' + key.name);
+            }
+        }
+        flushes.incrementAndGet();
+        try {
+            pipe.sync();
+        } catch (RuntimeException e) {
+            //ûȷעʱƬ´ע
+            registered.removeAll(created);
+            for (long delta : deltas.values()) {
+                lost.addAndGet(delta);
+            }
+            throw e;
+        }
+        increments.addAndGet(deltas.size());
+        return deltas.size();
+    }
+
+    /**
+     * ȡձصgetLost()
+     */
+    private synchronized void discard() {
+        for (AtomicLong counter : counts.values()) {
+            lost.addAndGet(counter.getAndSet(0));
+        }
+    }
+
+    /**
+     * updateCounterĵô
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * ͵HINCRBY
+     */
+    public long getIncrements() {
+        return increments.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * Ϊˢ³ļ֮
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    private static class Key {
+        private final int prec;
+        private final String name;
+        private final long bucket;
+
+        private Key(int prec, String name, long bucket) {
+            this.prec = prec;
+            this.name = name;
+            this.bucket = bucket;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return prec == other.prec && bucket == other.bucket && name.equals(other.name);
+        }
+
+        public int hashCode() {
+            return (name.hashCode() * 31 + prec) * 31 + (int)(bucket ^ (bucket >>> 32));
+        }
+    }
+
+    private class FlushThread
+        extends Thread
+    {
+        private volatile boolean quit;
+
+        public void quit() {
+            quit = true;
+        }
+
+        public void run() {
+            Jedis conn = null;
+            long backoff = 0;
+            while (!quit) {
+                long start = System.currentTimeMillis();
+                conn = flushOrReconnect(conn);
+                //Redisʱȴʱÿμӱڱأָ֮һд
+                backoff = conn != null ? 0 : Math.min(Math.max(backoff * 2, flushMillis), MAX_BACKOFF_MILLIS);
+                long wait = conn != null ? flushMillis : backoff;
+                try {
+                    sleep(Math.max(wait - (System.currentTimeMillis() - start), 1));
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            conn = flushOrReconnect(conn);
+            if (conn != null) {
+                conn.disconnect();
+            } else {
+                discard();
+            }
+        }
+
+        /**
+         * ûʱȽˢ£ʱرӣһˢʱ
+         *
+         * @return Լʹõӣʱؿֵ
+         */
+        private Jedis flushOrReconnect(Jedis conn) {
+            try {
+                if (conn == null) {
+                    conn = new Jedis("localhost");
+                    conn.select(15);
+                }
+                flush(conn);
+                return conn;
+            } catch (RuntimeException e) {
+                if (conn != null) {
+                    try {
+                        conn.disconnect();
+                    } catch (RuntimeException ignored) {
+                        //Ѿ
+                    }
+                }
+                return null;
+            }
+        }
+    }
+}
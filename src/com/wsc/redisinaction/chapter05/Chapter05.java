@@ -2,6 +2,7 @@ package com.wsc.redisinaction.chapter05;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.wsc.redisinaction.util.TransactionRunner;
 //import org.apache.commons.csv.CSVParser;
 //import org.javatuples.Pair;
 import redis.clients.jedis.*;
@@ -29,6 +30,9 @@ public class Chapter05 {
     static{
         ISO_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
+
+    //logCommonupdateStatsʹõִֹ
+    private final TransactionRunner runner = new TransactionRunner();
     
     public static final void main(String[] args)
         throws InterruptedException
@@ -247,35 +251,41 @@ public class Chapter05 {
     }
 
     public void logCommon(
-            Jedis conn, String name, String message, String severity, int timeout) {
-        String commonDest = "common:" + name + ':' + severity;
-        String startKey = commonDest + ":start";
-        long end = System.currentTimeMillis() + timeout;
-        while (System.currentTimeMillis() < end){
-            conn.watch(startKey);
-            String hourStart = ISO_FORMAT.format(new Date());
-            String existing = conn.get(startKey);
-
-            Transaction trans = conn.multi();
-            if (existing != null && COLLATOR.compare(existing, hourStart) < 0){
-                trans.rename(commonDest, commonDest + ":last");
-                trans.rename(startKey, commonDest + ":pstart");
-                trans.set(startKey, hourStart);
+            Jedis conn, final String name, final String message, final String severity, int timeout) {
+        final String commonDest = "common:" + name + ':' + severity;
+        final String startKey = commonDest + ":start";
+        runner.run(conn, "chapter05.logCommon", timeout, new TransactionRunner.Operation<Object>() {
+            private String hourStart;
+            private String existing;
+
+            public boolean read(Jedis conn) {
+                hourStart = ISO_FORMAT.format(new Date());
+                existing = conn.get(startKey);
+                return true;
             }
 
-            trans.zincrby(commonDest, 1, message);
+            public void write(Transaction trans) {
+                if (existing != null && COLLATOR.compare(existing, hourStart) < 0){
+                    trans.rename(commonDest, commonDest + ":last");
+                    trans.rename(startKey, commonDest + ":pstart");
+                    trans.set(startKey, hourStart);
+                }
+
+                trans.zincrby(commonDest, 1, message);
 
-            String recentDest = "recent:" + name + ':' + severity;
-            trans.lpush(recentDest, TIMESTAMP.format(new Date()) + ' ' + message);
-            trans.ltrim(recentDest, 0, 99);
-            List<Object> results = trans.exec();
-            // null response indicates that the transaction was aborted due to
-            // the watched key changing.
-            if (results == null){
-                continue;
+                String recentDest = "recent:" + name + ':' + severity;
+                trans.lpush(recentDest, TIMESTAMP.format(new Date()) + ' ' + message);
+                trans.ltrim(recentDest, 0, 99);
             }
-            return;
-        }
+
+            public Object done(List<Object> results) {
+                return null;
+            }
+        }, startKey);
+    }
+
+    public TransactionRunner getRunner() {
+        return runner;
     }
 
     public void updateCounter(Jedis conn, String name, int count) {
@@ -310,49 +320,51 @@ public class Chapter05 {
         return results;
     }*/
 
-    public List<Object> updateStats(Jedis conn, String context, String type, double value){
+    public List<Object> updateStats(Jedis conn, String context, String type, final double value){
         int timeout = 5000;
-        String destination = "stats:" + context + ':' + type;
-        String startKey = destination + ":start";
-        long end = System.currentTimeMillis() + timeout;
-        while (System.currentTimeMillis() < end){
-            conn.watch(startKey);
-            String hourStart = ISO_FORMAT.format(new Date());
-
-            String existing = conn.get(startKey);
-            Transaction trans = conn.multi();
-            if (existing != null && COLLATOR.compare(existing, hourStart) < 0){
-                trans.rename(destination, destination + ":last");
-                trans.rename(startKey, destination + ":pstart");
-                trans.set(startKey, hourStart);
+        final String destination = "stats:" + context + ':' + type;
+        final String startKey = destination + ":start";
+        return runner.run(conn, "chapter05.updateStats", timeout, new TransactionRunner.Operation<List<Object>>() {
+            private String hourStart;
+            private String existing;
+
+            public boolean read(Jedis conn) {
+                hourStart = ISO_FORMAT.format(new Date());
+                existing = conn.get(startKey);
+                return true;
+            }
+
+            public void write(Transaction trans) {
+                if (existing != null && COLLATOR.compare(existing, hourStart) < 0){
+                    trans.rename(destination, destination + ":last");
+                    trans.rename(startKey, destination + ":pstart");
+                    trans.set(startKey, hourStart);
+                }
+
+                String tkey1 = UUID.randomUUID().toString();
+                String tkey2 = UUID.randomUUID().toString();
+                trans.zadd(tkey1, value, "min");
+                trans.zadd(tkey2, value, "max");
+
+                trans.zunionstore(
+                    destination,
+                    new ZParams().aggregate(ZParams.Aggregate.MIN),
+                    destination, tkey1);
+                trans.zunionstore(
+                    destination,
+                    new ZParams().aggregate(ZParams.Aggregate.MAX),
+                    destination, tkey2);
+
+                trans.del(tkey1, tkey2);
+                trans.zincrby(destination, 1, "count");
+                trans.zincrby(destination, value, "sum");
+                trans.zincrby(destination, value * value, "sumsq");
             }
 
-            String tkey1 = UUID.randomUUID().toString();
-            String tkey2 = UUID.randomUUID().toString();
-            trans.zadd(tkey1, value, "min");
-            trans.zadd(tkey2, value, "max");
-
-            trans.zunionstore(
-                destination,
-                new ZParams().aggregate(ZParams.Aggregate.MIN),
-                destination, tkey1);
-            trans.zunionstore(
-                destination,
-                new ZParams().aggregate(ZParams.Aggregate.MAX),
-                destination, tkey2);
-
-            trans.del(tkey1, tkey2);
-            trans.zincrby(destination, 1, "count");
-            trans.zincrby(destination, value, "sum");
-            trans.zincrby(destination, value * value, "sumsq");
-
-            List<Object> results = trans.exec();
-            if (results == null){
-                continue;
+            public List<Object> done(List<Object> results) {
+                return results.subList(results.size() - 3, results.size());
             }
-            return results.subList(results.size() - 3, results.size());
-        }
-        return null;
+        }, startKey);
     }
 
     public Map<String,Double> getStats(Jedis conn, String context, String type){
@@ -0,0 +1,267 @@
+package com.wsc.redisinaction.chapter05;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import com.wsc.redisinaction.util.LuaScript;
+
+/**
+ * ʹWATCHĳ־
+ *
+ * Chapter05.logCommonΪ˷ֻÿϢҪWATCH common:<name>:<severity>:start
+ * ʽʱ䡢ȽִַMULTI/EXECд־ƵĽ֮䲻ͣػֹ
+ * ֻRotatoṛ߳ÿcommon:<name>:<severity>Ϊ:last
+ * ά:start:pstartĺChapter05.logCommonͬ
+ * ÿϢֻҪˮзZINCRBYLPUSHLTRIM
+ * ÿ̵һдĳ־ʱcommon:knownRotatorֻ
+ *
+ * @author wsc
+ *
+ */
+public class CommonLog {
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        CommonLog log = new CommonLog();
+        log.testCommonLog(conn);
+        benchmarkLogCommon(8, 5000);
+    }
+
+    /** дĳ־Աcommon:<name>:<severity> */
+    public static final String KNOWN = "common:known";
+
+    /** Chapter05ͬʽUTC */
+    static SimpleDateFormat hourFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:00:00");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    /**
+     * KEYS: common:<name>:<severity>, :last, :start, :pstart
+     * ARGV: ǰСʱ
+     * :start͸ͬһűɣмдϢᱻ㵽Сʱ
+     * û:startʱֻ¼ʼʱ䣻Ƿֻ
+     */
+    private static final LuaScript ROTATE = new LuaScript(
+        "local start = redis.call('get', KEYS[3]) " +
+        "if not start then " +
+        "  redis.call('set', KEYS[3], ARGV[1]) " +
+        "  return 0 " +
+        "end " +
+        //ʽǶַ֣ȽϾʱȽ
+        "if start >= ARGV[1] then " +
+        "  return 0 " +
+        "end " +
+        "if redis.call('exists', KEYS[1]) == 1 then " +
+        "  redis.call('rename', KEYS[1], KEYS[2]) " +
+        "else " +
+        "  redis.call('del', KEYS[2]) " +
+        "end " +
+        "redis.call('set', KEYS[4], start) " +
+        "redis.call('set', KEYS[3], ARGV[1]) " +
+        "return 1");
+
+    /**
+     * ־:starthourStartֻhourStart
+     *
+     * @param conn
+     * @param dest common:<name>:<severity>
+     * @param hourStart ǰСʱʽChapter05ͬ
+     * @return Ƿֻ
+     */
+    static boolean rotate(Jedis conn, String dest, String hourStart) {
+        Object rotated = ROTATE.call(conn, 4, dest, dest + ":last", dest + ":start", dest + ":pstart", hourStart);
+        return ((Long)rotated) == 1;
+    }
+
+    /** Ѿcommon:known־ */
+    private final Set<String> registered = ConcurrentHashMap.<String>newKeySet();
+
+    //SimpleDateFormat̰߳ȫģÿ߳ʹԼĸ
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP = new ThreadLocal<SimpleDateFormat>() {
+        protected SimpleDateFormat initialValue() {
+            return (SimpleDateFormat)Chapter05.TIMESTAMP.clone();
+        }
+    };
+
+    public void testCommonLog(Jedis conn)
+        throws InterruptedException
+    {
+        System.out.println("\n----- testCommonLog -----");
+        for (int count = 1; count < 6; count++) {
+            for (int i = 0; i < count; i++) {
+                logCommon(conn, "test", "message-" + count);
+            }
+        }
+        assert conn.zscore("common:test:info", "message-5") == 5;
+        assert conn.sismember(KNOWN, "common:test:info");
+        assert conn.llen("recent:test:info") == 15;
+
+        //һֻֻ¼ʼʱ
+        Rotator rotator = new Rotator();
+        int rotated = rotator.rotate(conn, "2015-01-01T10:00:00");
+        assert rotated == 0;
+        assert "2015-01-01T10:00:00".equals(conn.get("common:test:info:start"));
+        rotated = rotator.rotate(conn, "2015-01-01T10:00:00");
+        assert rotated == 0;
+
+        //һСʱ֮һСʱͳƱΪ:last
+        rotated = rotator.rotate(conn, "2015-01-01T11:00:00");
+        System.out.println("Rotated logs: " + rotated);
+        assert rotated == 1;
+        assert conn.zscore("common:test:info:last", "message-5") == 5;
+        assert !conn.exists("common:test:info");
+        assert "2015-01-01T10:00:00".equals(conn.get("common:test:info:pstart"));
+        assert "2015-01-01T11:00:00".equals(conn.get("common:test:info:start"));
+
+        //һСʱûϢʱ:lastΪ
+        rotated = rotator.rotate(conn, "2015-01-01T12:00:00");
+        assert rotated == 1;
+        assert !conn.exists("common:test:info:last");
+
+        conn.del(KNOWN, "common:test:info", "common:test:info:last", "common:test:info:start",
+            "common:test:info:pstart", "recent:test:info");
+    }
+
+    /**
+     * ߳ͬʱдͬһ־ȽChapter05.logCommonlogCommon
+     * ÿдϢԼֹĴ
+     *
+     * @param threads
+     * @param messages ÿ߳дϢ
+     * @throws InterruptedException
+     */
+    public static void benchmarkLogCommon(int threads, final int messages)
+        throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkLogCommon -----");
+        final Chapter05 ch05 = new Chapter05();
+        final CommonLog log = new CommonLog();
+
+        for (int round = 0; round < 2; round++) {
+            final boolean watch = round == 0;
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread() {
+                    public void run() {
+                        Jedis conn = new Jedis("localhost");
+                        conn.select(15);
+                        for (int i = 0; i < messages; i++) {
+                            if (watch) {
+                                ch05.logCommon(conn, "bench", "message-" + (i % 10));
+                            } else {
+                                log.logCommon(conn, "bench", "message-" + (i % 10));
+                            }
+                        }
+                        conn.disconnect();
+                    }
+                };
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            System.out.println(String.format("%-18s %.0f messages/s, aborts=%d",
+                watch ? "Chapter05.logCommon" : "CommonLog.logCommon",
+                threads * messages / seconds, watch ? ch05.getRunner().getAborts() : 0));
+
+            Jedis conn = new Jedis("localhost");
+            conn.select(15);
+            conn.del(KNOWN, "common:bench:info", "common:bench:info:last", "common:bench:info:start",
+                "common:bench:info:pstart", "recent:bench:info");
+            conn.disconnect();
+        }
+    }
+
+    public void logCommon(Jedis conn, String name, String message) {
+        logCommon(conn, name, message, Chapter05.INFO);
+    }
+
+    /**
+     * ¼һ־ֻ
+     *
+     * @param conn
+     * @param name
+     * @param message
+     * @param severity
+     */
+    public void logCommon(Jedis conn, String name, String message, String severity) {
+        String commonDest = "common:" + name + ':' + severity;
+        String recentDest = "recent:" + name + ':' + severity;
+
+        Pipeline pipe = conn.pipelined();
+        if (registered.add(commonDest)) {
+            pipe.sadd(KNOWN, commonDest);
+        }
+        pipe.zincrby(commonDest, 1, message);
+        pipe.lpush(recentDest, TIMESTAMP.get().format(new Date()) + ' ' + message);
+        pipe.ltrim(recentDest, 0, 99);
+        pipe.sync();
+    }
+
+    /**
+     * 𳣼־ֻ̣߳ϵͳֻҪһ
+     * ÿʱcommon:knownеÿ־:startڵǰСʱľֻ
+     * Ȼߵһ
+     */
+    public static class Rotator
+        extends Thread
+    {
+        private final SimpleDateFormat format = hourFormat();
+        private volatile boolean quit;
+
+        public void quit() {
+            quit = true;
+            interrupt();
+        }
+
+        public void run() {
+            Jedis conn = new Jedis("localhost");
+            conn.select(15);
+            while (!quit) {
+                long now = System.currentTimeMillis();
+                rotate(conn, format.format(new Date(now)));
+
+                //ʱ΢㣬һӣϵͳʱ䱻֮ʱ䲻ֻ
+                long nextHour = (now / 3600000 + 1) * 3600000;
+                try {
+                    sleep(Math.min(nextHour - now + 100, 60000));
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            conn.disconnect();
+        }
+
+        /**
+         * ֻпʼʱhourStart־
+         *
+         * @param conn
+         * @param hourStart ǰСʱʽChapter05ͬ
+         * @return ֻ־
+         */
+        public int rotate(Jedis conn, String hourStart) {
+            int rotated = 0;
+            for (String dest : conn.smembers(KNOWN)) {
+                if (CommonLog.rotate(conn, dest, hourStart)) {
+                    rotated++;
+                }
+            }
+            return rotated;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.wsc.redisinaction.chapter05;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import com.wsc.redisinaction.util.RedisInfo;
+import com.wsc.redisinaction.util.TransactionRunner;
+
+/**
+ * ڽԤȻܵĳ־
+ *
+ * logCommonĴ󲿷ֵöڷۼͬϢÿϢֻڱصļϼһ
+ * ̨߳ÿwindowMillisѼȡÿͬϢֻһZINCRBY
+ * RedisдȡϢϢʡ
+ *
+ * ϢСʱֿ档дʱWATCHÿ־:start
+ * :startڵǰСʱCommonLog.Rotatorһ־ֻǰСʱеRotator
+ * Ȼֻ״̬ÿд
+ *   :startϢСʱ    дcommon:<name>:<severity>
+ *   :pstartϢСʱ   Ѿֻд:last
+ *   :startϢСʱ    ϢԽСʱʱƫǸСʱ
+ *   Сʱ              ͳѾgetDropped()
+ * û:start־ûбֻֻеǰСʱϢд룬ͬʱCommonLog.Rotatorһ:start
+ * Сʱһˢ£ȥСʱgetDropped()
+ * дʱȡļӻرصļ֮ǰѾִУЩᱻظдһΡ
+ * ־бﴦԽAsyncLogAppender
+ *
+ * @author wsc
+ *
+ */
+public class CommonLogAggregator {
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testCommonLogAggregator(conn);
+        benchmarkCommonLogAggregator(conn, 8, 50000);
+    }
+
+    private static final long HOUR = 3600000;
+
+    private final ConcurrentHashMap<Key,AtomicLong> counts = new ConcurrentHashMap<Key,AtomicLong>();
+    private final long windowMillis;
+    private final TransactionRunner runner = new TransactionRunner();
+    private final SimpleDateFormat format = CommonLog.hourFormat();
+    private final Set<String> registered = ConcurrentHashMap.<String>newKeySet();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong increments = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private FlushThread thread;
+
+    /**
+     * @param windowMillis ˢ֮ʱ
+     */
+    public CommonLogAggregator(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public static void testCommonLogAggregator(Jedis conn)
+        throws InterruptedException
+    {
+        System.out.println("\n----- testCommonLogAggregator -----");
+        CommonLogAggregator aggregator = new CommonLogAggregator(1000);
+        long now = System.currentTimeMillis();
+        String hour = aggregator.formatHour(now / HOUR);
+        String previous = aggregator.formatHour(now / HOUR - 1);
+        conn.set("common:test:info:start", hour);
+        conn.set("common:test:info:pstart", previous);
+
+        for (int i = 0; i < 100; i++) {
+            aggregator.logCommon("test", "message-a", Chapter05.INFO, now);
+        }
+        for (int i = 0; i < 5; i++) {
+            aggregator.logCommon("test", "message-b", Chapter05.INFO, now);
+        }
+        //һСʱϢֻ֮ˢ£д:last
+        aggregator.logCommon("test", "message-c", Chapter05.INFO, now - HOUR);
+        //һСʱϢҪֻ֮д
+        aggregator.logCommon("test", "message-d", Chapter05.INFO, now + HOUR);
+        //Сʱ֮ǰͳѾ
+        aggregator.logCommon("test", "message-e", Chapter05.INFO, now - 2 * HOUR);
+
+        aggregator.flush(conn);
+        System.out.println("ZINCRBY calls for 108 messages: " + aggregator.getIncrements());
+        assert conn.zscore("common:test:info", "message-a") == 100;
+        assert conn.zscore("common:test:info", "message-b") == 5;
+        assert conn.zscore("common:test:info:last", "message-c") == 1;
+        assert conn.zscore("common:test:info", "message-d") == null;
+        assert aggregator.getIncrements() == 3;
+        assert aggregator.getDropped() == 1;
+        assert conn.sismember(CommonLog.KNOWN, "common:test:info");
+
+        //ֻ֮µļдµһСʱ
+        conn.rename("common:test:info", "common:test:info:last");
+        conn.set("common:test:info:pstart", hour);
+        conn.set("common:test:info:start", aggregator.formatHour(now / HOUR + 1));
+        aggregator.flush(conn);
+        assert conn.zscore("common:test:info", "message-d") == 1;
+
+        //û:start־ֻд뵱ǰСʱϢ:start
+        conn.del("common:test:info", "common:test:info:start", "common:test:info:pstart");
+        aggregator.logCommon("test", "message-f", Chapter05.INFO, now);
+        aggregator.logCommon("test", "message-g", Chapter05.INFO, now - HOUR);
+        aggregator.flush(conn);
+        assert conn.zscore("common:test:info", "message-f") == 1;
+        assert conn.zscore("common:test:info", "message-g") == null;
+        assert hour.equals(conn.get("common:test:info:start"));
+        assert aggregator.getDropped() == 2;
+
+        //ûRotatorʱ:startͣһСʱˢʱԼֻ
+        //һСʱͳƱΪ:lastǰСʱϢдµͳ
+        conn.del("common:test:info", "common:test:info:last");
+        conn.set("common:test:info:start", previous);
+        conn.set("common:test:info:pstart", aggregator.formatHour(now / HOUR - 2));
+        conn.zincrby("common:test:info", 1, "message-h");
+        aggregator.logCommon("test", "message-i", Chapter05.INFO, now);
+        aggregator.logCommon("test", "message-j", Chapter05.INFO, now - HOUR);
+        aggregator.flush(conn);
+        assert hour.equals(conn.get("common:test:info:start"));
+        assert previous.equals(conn.get("common:test:info:pstart"));
+        assert conn.zscore("common:test:info:last", "message-h") == 1;
+        assert conn.zscore("common:test:info:last", "message-j") == 1;
+        assert conn.zscore("common:test:info", "message-i") == 1;
+        assert conn.zscore("common:test:info", "message-h") == null;
+
+        conn.del(CommonLog.KNOWN, "common:test:info", "common:test:info:last",
+            "common:test:info:start", "common:test:info:pstart");
+    }
+
+    /**
+     * ̷߳¼10ϢȽCommonLog.logCommonԤȻʱ
+     *
+     * @param conn
+     * @param threads
+     * @param messages ÿ̼߳¼Ϣ
+     * @throws InterruptedException
+     */
+    public static void benchmarkCommonLogAggregator(Jedis conn, int threads, final int messages)
+        throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkCommonLogAggregator -----");
+        final CommonLog log = new CommonLog();
+        final CommonLogAggregator aggregator = new CommonLogAggregator(100);
+
+        for (int round = 0; round < 2; round++) {
+            final boolean aggregate = round == 1;
+            if (aggregate) {
+                aggregator.start();
+            }
+            long commands = RedisInfo.commandsProcessed(conn);
+            long start = System.nanoTime();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread() {
+                    public void run() {
+                        Jedis conn = aggregate ? null : new Jedis("localhost");
+                        if (conn != null) {
+                            conn.select(15);
+                        }
+                        for (int i = 0; i < messages; i++) {
+                            if (aggregate) {
+                                aggregator.logCommon("bench", "message-" + (i % 10), Chapter05.INFO);
+                            } else {
+                                log.logCommon(conn, "bench", "message-" + (i % 10));
+                            }
+                        }
+                        if (conn != null) {
+                            conn.disconnect();
+                        }
+                    }
+                };
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (aggregate) {
+                aggregator.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            commands = RedisInfo.commandsProcessed(conn) - commands;
+            System.out.println(String.format("%-24s %.0f messages/s, %d commands",
+                aggregate ? "CommonLogAggregator" : "CommonLog.logCommon", threads * messages / seconds, commands));
+            System.out.println("  message-0 count: " + conn.zscore("common:bench:info", "message-0"));
+            conn.del(CommonLog.KNOWN, "common:bench:info", "common:bench:info:last", "common:bench:info:start",
+                "common:bench:info:pstart", "recent:bench:info");
+        }
+    }
+
+    public void logCommon(String name, String message) {
+        logCommon(name, message, Chapter05.INFO);
+    }
+
+    /**
+     * һ־뱾صļ
+     *
+     * @param name
+     * @param message
+     * @param severity
+     */
+    public void logCommon(String name, String message, String severity) {
+        logCommon(name, message, severity, System.currentTimeMillis());
+    }
+
+    void logCommon(String name, String message, String severity, long millis) {
+        Key key = new Key("common:" + name + ':' + severity, millis / HOUR, message);
+        counter(key).incrementAndGet();
+        recorded.incrementAndGet();
+    }
+
+    private AtomicLong counter(Key key) {
+        AtomicLong counter = counts.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counts.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * ûдļӻرصļ
+     */
+    private void restore(Map<Key,Long> counts) {
+        for (Map.Entry<Key,Long> entry : counts.entrySet()) {
+            counter(entry.getKey()).addAndGet(entry.getValue());
+        }
+    }
+
+    /**
+     * ÿwindowMillisˢһεĺ̨߳
+     */
+    public void start() {
+        thread = new FlushThread();
+        thread.start();
+    }
+
+    /**
+     * ֹ̨̣ͣ߳ˢʣµļ
+     *
+     * @throws InterruptedException
+     */
+    public void close()
+        throws InterruptedException
+    {
+        if (thread != null) {
+            thread.quit();
+            thread.join();
+            thread = null;
+        }
+    }
+
+    /**
+     * ѱصļдRedis
+     * getAndSet(0)ԭӵȡ֮ʹãȡͲۼ֮䲻ᶪʧ
+     * Сʱ֮ǰļѾµļȡ֮ɾ
+     *
+     * @param conn
+     */
+    public synchronized void flush(Jedis conn) {
+        //ȡͬһ־ͬһСʱϢһ
+        final Map<Key,Long> pending = new HashMap<Key,Long>();
+        final long currentHour = System.currentTimeMillis() / HOUR;
+        for (Map.Entry<Key,AtomicLong> entry : counts.entrySet()) {
+            long count = entry.getValue().getAndSet(0);
+            if (count > 0) {
+                pending.put(entry.getKey(), count);
+            }
+            if (entry.getKey().hour < currentHour - 1 && entry.getValue().get() == 0) {
+                counts.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final List<String> destinations = new ArrayList<String>();
+        for (Key key : pending.keySet()) {
+            if (!destinations.contains(key.destination)) {
+                destinations.add(key.destination);
+            }
+        }
+        Set<String> watched = new LinkedHashSet<String>();
+        for (String dest : destinations) {
+            watched.add(dest + ":start");
+            watched.add(dest + ":pstart");
+        }
+
+        //WATCHֻ״̬дڼ䷢ֻ¾ÿд
+        Map<Key,Long> held;
+        try {
+            held = runner.run(conn, "chapter05.commonLogAggregator", 5000,
+                new TransactionRunner.Operation<Map<Key,Long>>() {
+                    private final Map<Key,String> targets = new HashMap<Key,String>();
+                    private final Map<Key,Long> held = new HashMap<Key,Long>();
+                    private final Map<String,String> starting = new HashMap<String,String>();
+                    private long expired;
+
+                    public boolean read(Jedis conn) {
+                        Pipeline pipe = conn.pipelined();
+                        Map<String,Response<String>> starts = new HashMap<String,Response<String>>();
+                        Map<String,Response<String>> pstarts = new HashMap<String,Response<String>>();
+                        for (String dest : destinations) {
+                            starts.put(dest, pipe.get(dest + ":start"));
+                            pstarts.put(dest, pipe.get(dest + ":pstart"));
+                        }
+                        pipe.sync();
+
+                        //֮ԼֻȻ¶ȡ޸ĵ:startһEXECʧܣ
+                        //ʱֻѾ
+                        String current = formatHour(currentHour);
+                        boolean rotated = false;
+                        for (String dest : destinations) {
+                            String start = starts.get(dest).get();
+                            if (start != null && Chapter05.COLLATOR.compare(start, current) < 0) {
+                                rotated |= CommonLog.rotate(conn, dest, current);
+                            }
+                        }
+                        if (rotated) {
+                            return read(conn);
+                        }
+
+                        targets.clear();
+                        held.clear();
+                        starting.clear();
+                        expired = 0;
+                        for (Map.Entry<Key,Long> entry : pending.entrySet()) {
+                            Key key = entry.getKey();
+                            String hour = formatHour(key.hour);
+                            String start = starts.get(key.destination).get();
+                            if (start == null) {
+                                //ûֻǰСʱϢд벢:startСʱûжӦͳ
+                                if (key.hour == currentHour) {
+                                    targets.put(key, key.destination);
+                                    starting.put(key.destination, hour);
+                                } else if (key.hour > currentHour) {
+                                    held.put(key, entry.getValue());
+                                } else {
+                                    expired += entry.getValue();
+                                }
+                                continue;
+                            }
+                            int cmp = Chapter05.COLLATOR.compare(start, hour);
+                            if (cmp == 0) {
+                                targets.put(key, key.destination);
+                            } else if (cmp < 0) {
+                                held.put(key, entry.getValue());
+                            } else if (hour.equals(pstarts.get(key.destination).get())) {
+                                targets.put(key, key.destination + ":last");
+                            } else {
+                                expired += entry.getValue();
+                            }
+                        }
+                        return targets.size() > 0;
+                    }
+
+                    public void write(Transaction trans) {
+                        for (Map.Entry<Key,String> entry : targets.entrySet()) {
+                            trans.zincrby(entry.getValue(), pending.get(entry.getKey()), entry.getKey().message);
+                        }
+                        for (Map.Entry<String,String> entry : starting.entrySet()) {
+                            trans.set(entry.getKey() + ":start", entry.getValue());
+                        }
+                    }
+
+                    public Map<Key,Long> done(List<Object> results) {
+                        dropped.addAndGet(expired);
+                        increments.addAndGet(targets.size());
+                        for (Key key : targets.keySet()) {
+                            written.addAndGet(pending.get(key));
+                        }
+                        return held;
+                    }
+
+                    public Map<Key,Long> rejected() {
+                        dropped.addAndGet(expired);
+                        return held;
+                    }
+
+                    public Map<Key,Long> timedOut() {
+                        //һֱûд룬ȫһˢ
+                        return pending;
+                    }
+                }, watched.toArray(new String[watched.size()]));
+        } catch (RuntimeException e) {
+            restore(pending);
+            throw e;
+        }
+        restore(held);
+
+        List<String> names = new ArrayList<String>();
+        Pipeline pipe = conn.pipelined();
+        for (String dest : destinations) {
+            if (registered.add(dest)) {
+                names.add(dest);
+                pipe.sadd(CommonLog.KNOWN, dest);
+            }
+        }
+        try {
+            pipe.sync();
+        } catch (RuntimeException e) {
+            //ûȷע־´ע
+            registered.removeAll(names);
+            throw e;
+        }
+    }
+
+    private String formatHour(long hour) {
+        synchronized (format) {
+            return format.format(new Date(hour * HOUR));
+        }
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * ѾдRedisϢ
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * ͵ZINCRBY
+     */
+    public long getIncrements() {
+        return increments.get();
+    }
+
+    /**
+     * ΪСʱѾֻΣ־ûֻϢ
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private static class Key {
+        private final String destination;
+        private final long hour;
+        private final String message;
+
+        private Key(String destination, long hour, String message) {
+            this.destination = destination;
+            this.hour = hour;
+            this.message = message;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return hour == other.hour && destination.equals(other.destination) && message.equals(other.message);
+        }
+
+        public int hashCode() {
+            return (destination.hashCode() * 31 + (int)(hour ^ (hour >>> 32))) * 31 + message.hashCode();
+        }
+    }
+
+    private class FlushThread
+        extends Thread
+    {
+        private volatile boolean quit;
+
+        public void quit() {
+            quit = true;
+        }
+
+        public void run() {
+            Jedis conn = null;
+            while (!quit) {
+                try {
+                    sleep(windowMillis);
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                conn = flushOrReconnect(conn);
+            }
+            conn = flushOrReconnect(conn);
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        /**
+         * ûʱȽˢ¡ʱѾӻرأرӣһˢʱ
+         *
+         * @return Լʹõӣʱؿֵ
+         */
+        private Jedis flushOrReconnect(Jedis conn) {
+            try {
+                if (conn == null) {
+                    conn = new Jedis("localhost");
+                    conn.select(15);
+                }
+                flush(conn);
+                return conn;
+            } catch (RuntimeException e) {
+                if (conn != null) {
+                    try {
+                        conn.disconnect();
+                    } catch (RuntimeException ignored) {
+                        //Ѿ
+                    }
+                }
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.wsc.redisinaction.chapter05;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import com.wsc.redisinaction.util.LuaScript;
+import com.wsc.redisinaction.util.MultiValuePipeline;
+
+/**
+ * Chapter05.CleanCountersThreadļ̡߳
+ *
+ * CleanCountersThreadÿҪִһZCARD known:ZRANGE known: index index
+ * ȡɢеHKEYSַÿӵͼȣ
+ * λͬʱַʱ˳Ǵġ
+ * ÿδknown:ȡһҳһˮȡһҳɢеֶΣ
+ * ֶεֺͽֹʱȽϣһˮ߶ÿɢзһֶεHDEL
+ * һűѱյļknown:ɾ
+ *
+ * ͬʱж̣߳known:ķֵ0Աֽ˳У
+ * ÿһֿʼʱknown:ֳworkersΣworkerֻ߳ȡԼһγԱ֮ļ
+ * εı߽ǳԱ߳ɾƶ߽磻
+ * ߳̿ʼʱ䲻ͬʱ߽總ļ̴ܱ߳һ֣ݵȵġ
+ *
+ * @author wsc
+ *
+ */
+public class CounterCleaner
+    extends Thread
+{
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        Jedis conn = new Jedis("localhost");
+        conn.select(15);
+
+        testCounterCleaner(conn);
+        benchmarkCounterCleaner(conn, 2000, 4);
+    }
+
+    private final Jedis conn;
+    private final int sampleCount;
+    private final long timeOffset; // used to mimic a time in the future.
+    private final int worker;
+    private final int workers;
+    private final int pageSize;
+    private final AtomicLong processed = new AtomicLong();
+    private volatile double rate;
+    private volatile boolean quit;
+
+    public CounterCleaner(int sampleCount, long timeOffset) {
+        this(sampleCount, timeOffset, 0, 1, 100);
+    }
+
+    /**
+     * @param sampleCount ÿ
+     * @param timeOffset ڵǰʱϵĺģ⽫ʱ
+     * @param worker ̵߳ıţ0ʼ
+     * @param workers ̵߳
+     * @param pageSize ÿδknown:ȡļ
+     */
+    public CounterCleaner(int sampleCount, long timeOffset, int worker, int workers, int pageSize) {
+        this.conn = new Jedis("localhost");
+        this.conn.select(15);
+        this.sampleCount = sampleCount;
+        this.timeOffset = timeOffset;
+        this.worker = worker;
+        this.workers = workers;
+        this.pageSize = pageSize;
+    }
+
+    public static void testCounterCleaner(Jedis conn)
+        throws InterruptedException
+    {
+        System.out.println("\n----- testCounterCleaner -----");
+        Chapter05 ch05 = new Chapter05();
+        long now = System.currentTimeMillis() / 1000;
+        //9λʱַʱ10λĺ棬CleanCountersThreadɾ
+        ch05.updateCounter(conn, "test", 1, 999999999);
+        for (int i = 0; i < 10; i++) {
+            ch05.updateCounter(conn, "test", 1, now + i);
+            ch05.updateCounter(conn, "other", 1, now + i);
+        }
+
+        //߳ͬһʱ̻known:ͬʱ߳һ
+        CounterCleaner[] cleaners = new CounterCleaner[2];
+        String[][] ranges = new String[cleaners.length][];
+        for (int i = 0; i < cleaners.length; i++) {
+            cleaners[i] = new CounterCleaner(100, 0, i, cleaners.length, 5);
+            ranges[i] = cleaners[i].range();
+        }
+        int processed = 0;
+        for (int i = 0; i < cleaners.length; i++) {
+            processed += cleaners[i].clean(0, ranges[i]);
+        }
+        //̺߳ôÿһ
+        assert processed == 2 * Chapter05.PRECISION.length;
+        assert conn.hlen("count:1:test") == 10;
+        assert conn.hget("count:1:test", "999999999") == null;
+        assert conn.hlen("count:1:other") == 10;
+
+        //֮һ
+        for (int i = 0; i < cleaners.length; i++) {
+            cleaners[i].conn.disconnect();
+            cleaners[i] = new CounterCleaner(0, 2 * 86400000L, i, cleaners.length, 5);
+            ranges[i] = cleaners[i].range();
+        }
+        for (int i = 0; i < cleaners.length; i++) {
+            cleaners[i].clean(0, ranges[i]);
+        }
+        System.out.println("Did we clean out all of the counters? " + (conn.zcard("known:") == 0));
+        assert conn.zcard("known:") == 0;
+        assert !conn.exists("count:1:test") && !conn.exists("count:86400:other");
+        for (CounterCleaner cleaner : cleaners) {
+            cleaner.conn.disconnect();
+        }
+    }
+
+    /**
+     * countersֵļÿ7־ȣȽ1threads߳ÿ봦ļ
+     *
+     * @param conn
+     * @param counters
+     * @param threads
+     * @throws InterruptedException
+     */
+    public static void benchmarkCounterCleaner(Jedis conn, int counters, int threads)
+        throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkCounterCleaner -----");
+        for (int workers : new int[]{1, threads}) {
+            long now = System.currentTimeMillis() / 1000;
+            Pipeline pipe = conn.pipelined();
+            for (int c = 0; c < counters; c++) {
+                for (int prec : Chapter05.PRECISION) {
+                    String hash = String.valueOf(prec) + ':' + "bench" + c;
+                    pipe.zadd("known:", 0, hash);
+                    //һѾ
+                    for (int s = 0; s < 20; s++) {
+                        pipe.hincrBy("count:" + hash, String.valueOf(((now - s * prec) / prec) * prec), 1);
+                    }
+                }
+            }
+            pipe.sync();
+
+            CounterCleaner[] cleaners = new CounterCleaner[workers];
+            for (int i = 0; i < workers; i++) {
+                cleaners[i] = new CounterCleaner(10, 0, i, workers, 500);
+            }
+            long start = System.nanoTime();
+            for (CounterCleaner cleaner : cleaners) {
+                cleaner.start();
+            }
+            long total = counters * Chapter05.PRECISION.length;
+            long done = 0;
+            while (done < total) {
+                Thread.sleep(10);
+                done = 0;
+                for (CounterCleaner cleaner : cleaners) {
+                    done += cleaner.getProcessed();
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            for (CounterCleaner cleaner : cleaners) {
+                cleaner.quit();
+                cleaner.interrupt();
+                cleaner.join();
+            }
+            System.out.println(String.format("%d worker(s): %.0f counters/s", workers, total / seconds));
+
+            Set<String> keys = conn.keys("count:*:bench*");
+            keys.add("known:");
+            conn.del(keys.toArray(new String[keys.size()]));
+        }
+    }
+
+    public void quit() {
+        quit = true;
+    }
+
+    public void run() {
+        int passes = 0;
+        while (!quit) {
+            long start = System.currentTimeMillis();
+            int count = clean(passes);
+            long duration = System.currentTimeMillis() - start;
+            rate = count * 1000.0 / Math.max(duration, 1);
+
+            passes++;
+            try {
+                sleep(Math.max(60000 - Math.min(duration + 1000, 60000), 1000));
+            }catch(InterruptedException ie){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        conn.disconnect();
+    }
+
+    /**
+     * KEYS: known:
+     * ARGV: Ա, Ƿ(1/0), յԱַʾûյ㣩, 
+     * ֽ˳RedisĳԱ˳ֲͬյ֮һҳԱ
+     */
+    private static final LuaScript RANGE_PAGE = new LuaScript(
+        "local function before(a, b) " +
+        "  for i = 1, math.min(#a, #b) do " +
+        "    local x, y = string.byte(a, i), string.byte(b, i) " +
+        "    if x ~= y then return x < y end " +
+        "  end " +
+        "  return #a < #b " +
+        "end " +
+        "local lo, hi = 0, redis.call('zcard', KEYS[1]) " +
+        "while lo < hi do " +
+        "  local mid = math.floor((lo + hi) / 2) " +
+        "  local member = redis.call('zrange', KEYS[1], mid, mid)[1] " +
+        "  if before(member, ARGV[1]) or (ARGV[2] == '0' and member == ARGV[1]) then " +
+        "    lo = mid + 1 " +
+        "  else " +
+        "    hi = mid " +
+        "  end " +
+        "end " +
+        "local page = redis.call('zrange', KEYS[1], lo, lo + tonumber(ARGV[4]) - 1) " +
+        "local result = {} " +
+        "for i, member in ipairs(page) do " +
+        "  if ARGV[3] ~= '' and not before(member, ARGV[3]) then break end " +
+        "  table.insert(result, member) " +
+        "end " +
+        "return result");
+
+    /**
+     * KEYS: known:, ÿɢ
+     * ARGV: ÿknown:еĳԱ
+     * ɢȻΪʱŴknown:ɾɾ֮䲻µд룻ɾ
+     */
+    private static final LuaScript REMOVE_EMPTY = new LuaScript(
+        "local removed = 0 " +
+        "for i, hash in ipairs(ARGV) do " +
+        "  if redis.call('hlen', KEYS[i + 1]) == 0 then " +
+        "    removed = removed + redis.call('zrem', KEYS[1], hash) " +
+        "  end " +
+        "end " +
+        "return removed");
+
+    /**
+     * ǰknown:ֳworkersΣ߳һεյԱ
+     * ڣһεǿַյ㲻ڣһûյ㣨null
+     *
+     * @return һΪʱnull
+     */
+    String[] range() {
+        long count = conn.zcard("known:");
+        int first = (int)(count * worker / workers);
+        int next = (int)(count * (worker + 1) / workers);
+        if (first >= next) {
+            return null;
+        }
+        Pipeline pipe = conn.pipelined();
+        Response<Set<String>> lower = pipe.zrange("known:", first, first);
+        Response<Set<String>> upper = pipe.zrange("known:", next, next);
+        pipe.sync();
+        String start = worker == 0 || lower.get().isEmpty() ? "" : lower.get().iterator().next();
+        String end = worker == workers - 1 || upper.get().isEmpty() ? null : upper.get().iterator().next();
+        return new String[]{start, end};
+    }
+
+    /**
+     * known:̸֮߳һ
+     *
+     * @param passes ѾɵΪprecļÿmax(prec / 60, 1)һ
+     * @return ļ
+     */
+    public int clean(int passes) {
+        return clean(passes, range());
+    }
+
+    /**
+     * ҳknown:еһΣһҪļ
+     *
+     * @param passes Ѿɵ
+     * @param range range()ķֵ
+     * @return ļ
+     */
+    int clean(int passes, String[] range) {
+        if (range == null) {
+            return 0;
+        }
+        long now = (System.currentTimeMillis() + timeOffset) / 1000;
+        int count = 0;
+        String lower = range[0];
+        boolean inclusive = true;
+        String upper = range[1] == null ? "" : range[1];
+        while (!quit) {
+            @SuppressWarnings("unchecked")
+            List<String> page = (List<String>)RANGE_PAGE.call(conn, 1, "known:",
+                lower, inclusive ? "1" : "0", upper, String.valueOf(pageSize));
+            if (page.isEmpty()) {
+                break;
+            }
+
+            List<String> hashes = new ArrayList<String>();
+            for (String hash : page) {
+                int prec = Integer.parseInt(hash.substring(0, hash.indexOf(':')));
+                int bprec = Math.max(prec / 60, 1);
+                if (passes % bprec == 0) {
+                    hashes.add(hash);
+                }
+            }
+
+            Pipeline pipe = conn.pipelined();
+            List<Response<Set<String>>> fields = new ArrayList<Response<Set<String>>>();
+            for (String hash : hashes) {
+                fields.add(pipe.hkeys("count:" + hash));
+            }
+            pipe.sync();
+
+            //ʱڽֹʱÿɢһHDELɾ
+            List<String> emptied = new ArrayList<String>();
+            MultiValuePipeline deletes = new MultiValuePipeline(conn);
+            for (int i = 0; i < hashes.size(); i++) {
+                String hash = hashes.get(i);
+                int prec = Integer.parseInt(hash.substring(0, hash.indexOf(':')));
+                long cutoff = now - sampleCount * prec;
+                Set<String> samples = fields.get(i).get();
+                List<String> expired = new ArrayList<String>();
+                for (String sample : samples) {
+                    if (Long.parseLong(sample) <= cutoff) {
+                        expired.add(sample);
+                    }
+                }
+                if (expired.size() > 0) {
+                    deletes.hdel("count:" + hash, expired.toArray(new String[expired.size()]));
+                }
+                if (expired.size() == samples.size()) {
+                    emptied.add(hash);
+                }
+            }
+            deletes.sync();
+
+            //ɾյļȻûµʱknown:ƳһҳֻҪһ
+            if (emptied.size() > 0) {
+                List<String> args = new ArrayList<String>();
+                args.add("known:");
+                for (String hash : emptied) {
+                    args.add("count:" + hash);
+                }
+                args.addAll(emptied);
+                REMOVE_EMPTY.call(conn, emptied.size() + 1, args.toArray(new String[args.size()]));
+            }
+
+            count += hashes.size();
+            processed.addAndGet(hashes.size());
+            //һҳһҳһԱ֮ʼɾĳԱӰλ
+            lower = page.get(page.size() - 1);
+            inclusive = false;
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * ļ
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * һÿ봦ļ
+     */
+    public double getRate() {
+        return rate;
+    }
+}
@@ -2,6 +2,7 @@ package com.wsc.redisinaction.chapter06;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.wsc.redisinaction.util.TransactionRunner;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.Tuple;
@@ -13,6 +14,9 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 public class Chapter06 {
+    //autocompleteOnPrefixreleaseLockʹõִֹ
+    private final TransactionRunner runner = new TransactionRunner();
+
     public static final void main(String[] args)
         throws Exception
     {
@@ -460,44 +464,49 @@ public class Chapter06 {
      * @return
      */
     @SuppressWarnings("unchecked")
-    public Set<String> autocompleteOnPrefix(Jedis conn, String guild, String prefix) {
+    public Set<String> autocompleteOnPrefix(final Jedis conn, String guild, String prefix) {
     	//ݸǰ׺ҷΧյ
         String[] range = findPrefixRange(prefix);
-        String start = range[0];
-        String end = range[1];
         String identifier = UUID.randomUUID().toString();
-        start += identifier;
-        end += identifier;
-        String zsetName = "members:" + guild;
+        final String start = range[0] + identifier;
+        final String end = range[1] + identifier;
+        final String zsetName = "members:" + guild;
 
         //ΧԪغͽԪӵ򼯺
         conn.zadd(zsetName, 0, start);
         conn.zadd(zsetName, 0, end);
 
-        Set<String> items = null;
-        while (true){
-            conn.watch(zsetName);
-            
-            //ҵԪ򼯺ϵ
-            int sindex = conn.zrank(zsetName, start).intValue();
-            int eindex = conn.zrank(zsetName, end).intValue();
-            int erange = Math.min(sindex + 9, eindex - 2);
+        Set<String> items = runner.run(conn, "chapter06.autocompleteOnPrefix", 5000,
+            new TransactionRunner.Operation<Set<String>>() {
+                private int sindex;
+                private int erange;
+
+                public boolean read(Jedis conn) {
+                    //ҵԪ򼯺ϵ
+                    sindex = conn.zrank(zsetName, start).intValue();
+                    int eindex = conn.zrank(zsetName, end).intValue();
+                    erange = Math.min(sindex + 9, eindex - 2);
+                    return true;
+                }
+
+                public void write(Transaction trans) {
+                    //ȡΧڵֵȻɾ֮ǰʼԪغͽԪ
+                    trans.zrem(zsetName, start);
+                    trans.zrem(zsetName, end);
+                    trans.zrange(zsetName, sindex, erange);
+                }
+
+                public Set<String> done(List<Object> results) {
+                    return (Set<String>)results.get(results.size() - 1);
+                }
+
+                public Set<String> timedOut() {
+                    //򼯺һֱڱ仯βңɾʼԪغͽԪ
+                    conn.zrem(zsetName, start, end);
+                    return new HashSet<String>();
+                }
+            }, zsetName);
 
-            //
-            Transaction trans = conn.multi();
-            
-            //ȡΧڵֵȻɾ֮ǰʼԪغͽԪ
-            trans.zrem(zsetName, start);
-            trans.zrem(zsetName, end);
-            trans.zrange(zsetName, sindex, erange);
-            List<Object> results = trans.exec();
-            if (results != null){
-                items = (Set<String>)results.get(results.size() - 1);
-                break;
-            }
-        }
-        
-        
         //ԶȫĲִУ
         //ôӻȡԪƳʼԪغͽԪ
         for (Iterator<String> iterator = items.iterator(); iterator.hasNext(); ){
@@ -601,30 +610,29 @@ public class Chapter06 {
      * @param identifier
      * @return
      */
-    public boolean releaseLock(Jedis conn, String lockName, String identifier) {
-        String lockKey = "lock:" + lockName;
+    public boolean releaseLock(Jedis conn, String lockName, final String identifier) {
+        final String lockKey = "lock:" + lockName;
+
+        //ӵļڼ֮仯ʱ˱ԣʱ߽Ѿʧȥfalse
+        return runner.run(conn, "chapter06.releaseLock", 5000, new TransactionRunner.Operation<Boolean>() {
+            public boolean read(Jedis conn) {
+                //ǷȻ
+                return identifier.equals(conn.get(lockKey));
+            }
 
-        while (true){
-            conn.watch(lockKey);
-            
-            //ǷȻ
-            if (identifier.equals(conn.get(lockKey))){
-                Transaction trans = conn.multi();
+            public void write(Transaction trans) {
                 //ɾüͷ
                 trans.del(lockKey);
-                List<Object> results = trans.exec();
-                if (results == null){
-                    continue;
-                }
+            }
+
+            public Boolean done(List<Object> results) {
                 return true;
             }
 
-            conn.unwatch();
-            break;
-        }
-        
-        //Ѿʧȥ
-        return false;
+            public Boolean rejected() {
+                return false;
+            }
+        }, lockKey);
     }
 
     /**
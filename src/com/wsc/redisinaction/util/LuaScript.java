@@ -0,0 +1,48 @@
+package com.wsc.redisinaction.util;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * һLuaűһεʱű֮ͨEVALSHAֻͽűSHA1
+ * Ľű汻գʱԶ롣֮߳乲
+ *
+ * @author wsc
+ *
+ */
+public class LuaScript {
+    private final String source;
+    private volatile String sha;
+
+    public LuaScript(String source) {
+        this.source = source;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * ִнű
+     *
+     * @param conn
+     * @param keyCount argsǰkeyCountǼǲ
+     * @param args
+     * @return
+     */
+    public Object call(Jedis conn, int keyCount, String... args) {
+        String current = sha;
+        if (current == null) {
+            current = sha = conn.scriptLoad(source);
+        }
+        try {
+            return conn.evalsha(current, keyCount, args);
+        }catch(JedisDataException jde){
+            if (jde.getMessage() == null || !jde.getMessage().startsWith("NOSCRIPT")) {
+                throw jde;
+            }
+            sha = conn.scriptLoad(source);
+            return conn.evalsha(sha, keyCount, args);
+        }
+    }
+}
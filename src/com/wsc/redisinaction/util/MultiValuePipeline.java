@@ -0,0 +1,52 @@
+package com.wsc.redisinaction.util;
+
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Jedis 2.1PipelineȱٵĶֵ
+ *
+ * JedislpushhdelһδֵPipelineֻṩֵİ汾
+ * һn־ҪnLPUSHֱͨӵClientͶֵ
+ * ظȻ˳ˮsync()ʱһȡ
+ *
+ * @author wsc
+ *
+ */
+public class MultiValuePipeline
+    extends Pipeline
+{
+    private final Client client;
+
+    public MultiValuePipeline(Jedis conn) {
+        client = conn.getClient();
+        setClient(client);
+    }
+
+    /**
+     * ˳valuesбˣһֵλбǰ棬εLPUSHĽͬ
+     *
+     * @param key
+     * @param values
+     * @return ֮бĳ
+     */
+    public Response<Long> lpush(String key, String... values) {
+        client.lpush(key, values);
+        return getResponse(BuilderFactory.LONG);
+    }
+
+    /**
+     * һɾɢеĶֶ
+     *
+     * @param key
+     * @param fields
+     * @return ɾֶ
+     */
+    public Response<Long> hdel(String key, String... fields) {
+        client.hdel(key, fields);
+        return getResponse(BuilderFactory.LONG);
+    }
+}
@@ -0,0 +1,264 @@
+package com.wsc.redisinaction.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Ѷ߳ύϲˮз͡
+ *
+ * ÿsubmit()ύһCommandˮзһupdateToken
+ * ͬһCommandеͬһηִС
+ * ̨ܹ߳maxBatchCommandߵһCommandȴmaxDelayMicros֮
+ * ͨԼһηͣsync()ȡȫظÿõCompletableFuture
+ * ֻʹˮߣʹMULTI/EXECͬCommand֮ûԭԱ֤
+ *
+ * ӳ֮󣬺̨߳ԵļӣڴڼȡCommand쳣ɣѻ
+ * ֹ̨֮߳ͣsubmit()׳IllegalStateExceptionʣµCommandȫ쳣ɡ
+ *
+ * @author wsc
+ *
+ */
+public class PipelineBatcher {
+
+    /**
+     * һ߼
+     *
+     * @param <T> ظ
+     */
+    public interface Command<T> {
+        /**
+         * ں̨߳еãˮ
+         *
+         * @param pipe
+         * @return ߹ĵĻظҪظʱnull
+         */
+        Response<T> queue(Pipeline pipe);
+    }
+
+    private static class Entry<T> {
+        private final Command<T> command;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+        private Response<T> response;
+
+        private Entry(Command<T> command) {
+            this.command = command;
+        }
+
+        private void queue(Pipeline pipe) {
+            response = command.queue(pipe);
+        }
+
+        private void complete() {
+            try {
+                future.complete(response == null ? null : response.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final BlockingQueue<Entry<?>> queue = new LinkedBlockingQueue<Entry<?>>();
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final FlushThread thread = new FlushThread();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    //submit()ڶ¼closedУclose()дclosed
+    //closed֮вٳµCommand
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    /** ӵ */
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    public PipelineBatcher() {
+        this(100, 1000);
+    }
+
+    /**
+     * @param maxBatch һη͵Command
+     * @param maxDelayMicros һCommandȴã΢룩ͷ
+     */
+    public PipelineBatcher(int maxBatch, long maxDelayMicros) {
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = maxDelayMicros * 1000;
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * ύһ߼ȴִ
+     *
+     * @param command
+     * @return Ļظȡ֮ɣʱ쳣
+     */
+    public <T> CompletableFuture<T> submit(Command<T> command) {
+        Entry<T> entry = new Entry<T>(command);
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("PipelineBatcher is closed");
+            }
+            submitted.incrementAndGet();
+            queue.add(entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entry.future;
+    }
+
+    /**
+     * ѾύȻֹ̨ͣ߳
+     *
+     * @throws InterruptedException
+     */
+    public void close()
+        throws InterruptedException
+    {
+        markClosed();
+        thread.join();
+    }
+
+    private void markClosed() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * ƽÿη͵Command
+     */
+    public double getMeanBatchSize() {
+        long f = flushes.get();
+        return f == 0 ? 0 : (double)submitted.get() / f;
+    }
+
+    private class FlushThread
+        extends Thread
+    {
+        private Jedis conn;
+        private long backoff;
+        private long retryAt;
+
+        public void run() {
+            List<Entry<?>> batch = new ArrayList<Entry<?>>();
+            try {
+                while (!closed || !queue.isEmpty()) {
+                    try {
+                        Entry<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        //ӵһCommand￪ʼʱܹһʱ䵽˾ͷ
+                        batch.add(first);
+                        long deadline = System.nanoTime() + maxDelayNanos;
+                        while (batch.size() < maxBatch) {
+                            queue.drainTo(batch, maxBatch - batch.size());
+                            long wait = deadline - System.nanoTime();
+                            if (batch.size() >= maxBatch || wait <= 0) {
+                                break;
+                            }
+                            Entry<?> next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                            if (next == null) {
+                                break;
+                            }
+                            batch.add(next);
+                        }
+                    }catch(InterruptedException ie){
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+
+                    flush(batch);
+                    batch.clear();
+                }
+                //close()֮ǰպύ
+                queue.drainTo(batch);
+                if (batch.size() > 0) {
+                    flush(batch);
+                    batch.clear();
+                }
+            } finally {
+                //̨߳Ϊκԭֹ֮ͣ󣬲ٽµCommandʣµȫ쳣
+                markClosed();
+                queue.drainTo(batch);
+                IllegalStateException stopped = new IllegalStateException("PipelineBatcher is closed");
+                for (Entry<?> entry : batch) {
+                    entry.future.completeExceptionally(stopped);
+                }
+                if (conn != null) {
+                    disconnect();
+                }
+            }
+        }
+
+        /**
+         * һǵFutureӳʱһȫ쳣ɣ
+         * ȴļ֮ӣȴڼֱ쳣
+         */
+        private void flush(List<Entry<?>> batch) {
+            flushes.incrementAndGet();
+            try {
+                if (conn == null) {
+                    if (System.currentTimeMillis() < retryAt) {
+                        throw new JedisConnectionException("Redis is unavailable, reconnecting in "
+                            + (retryAt - System.currentTimeMillis()) + "ms");
+                    }
+                    conn = new Jedis("localhost");
+                    conn.select(15);
+                }
+                Pipeline pipe = conn.pipelined();
+                for (Entry<?> entry : batch) {
+                    entry.queue(pipe);
+                }
+                pipe.sync();
+                backoff = 0;
+            } catch (RuntimeException e) {
+                for (Entry<?> entry : batch) {
+                    entry.future.completeExceptionally(e);
+                }
+                if (conn != null) {
+                    disconnect();
+                    backoff = Math.min(Math.max(backoff * 2, 10), MAX_BACKOFF_MILLIS);
+                    retryAt = System.currentTimeMillis() + backoff;
+                }
+                return;
+            }
+            for (Entry<?> entry : batch) {
+                entry.complete();
+            }
+        }
+
+        private void disconnect() {
+            try {
+                conn.disconnect();
+            } catch (RuntimeException e) {
+                //ѾˣԹرʱĴ
+            }
+            conn = null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.wsc.redisinaction.util;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * INFOжȡͳϢڴԱȲʹ
+ *
+ * @author wsc
+ *
+ */
+public class RedisInfo {
+
+    /**
+     * ǰʹõڴֽused_memory
+     *
+     * @param conn
+     * @return
+     */
+    public static long usedMemory(Jedis conn) {
+        return field(conn.info(), "used_memory");
+    }
+
+    /**
+     * total_commands_processed
+     *
+     * @param conn
+     * @return
+     */
+    public static long commandsProcessed(Jedis conn) {
+        return field(conn.info(), "total_commands_processed");
+    }
+
+    /**
+     * ȡINFOĳֶεֵֶβʱ-1
+     *
+     * @param info
+     * @param name
+     * @return
+     */
+    public static long field(String info, String name) {
+        String prefix = name + ':';
+        for (String line : info.split("\r?\n")) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(prefix.length()).trim());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,226 @@
+package com.wsc.redisinaction.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+
+/**
+ * ִֹWATCHļִжȡ׶ΣMULTI/EXECִд׶Σ
+ * ӵļ仯EXECʧʱȴһʱ֮ԣֱɹ߳ޡ
+ *
+ * ȴʱô޵ָ˱ܺȫnǰȴ[0, min(max, base * 2^n))֮ʱ䣬
+ * ͻͬһʱٴγͻ
+ * ÿƷֱͳƳԴֹɹʱԼϵʱ䡣
+ *
+ * @author wsc
+ *
+ */
+public class TransactionRunner {
+
+    /**
+     * һֹÿεrun()Ӧôһµʵȡ׶εĽԱʵֶ
+     *
+     * @param <T> ķֵ
+     */
+    public static abstract class Operation<T> {
+        /**
+         * ȡ׶ΣڱӵļִУÿԶִ
+         *
+         * @param conn
+         * @return falseʾҪд룬ִȡӲrejected()Ľ
+         */
+        public boolean read(Jedis conn) {
+            return true;
+        }
+
+        /**
+         * д׶ΣŽ
+         *
+         * @param trans
+         */
+        public abstract void write(Transaction trans);
+
+        /**
+         * ִгɹ
+         *
+         * @param results EXECصĽ
+         * @return
+         */
+        public abstract T done(List<Object> results);
+
+        /**
+         * ȡ׶ξд
+         */
+        public T rejected() {
+            return null;
+        }
+
+        /**
+         * Ȼûִгɹ
+         */
+        public T timedOut() {
+            return rejected();
+        }
+    }
+
+    /**
+     * һƵͳ
+     */
+    public static class Metrics {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong aborts = new AtomicLong();
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong rejections = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong retryNanos = new AtomicLong();
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getAttempts() {
+            return attempts.get();
+        }
+
+        public long getAborts() {
+            return aborts.get();
+        }
+
+        public long getSuccesses() {
+            return successes.get();
+        }
+
+        public long getRejections() {
+            return rejections.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        /**
+         * һγʧֱ֮ýʱܺͣ룩
+         */
+        public long getRetryNanos() {
+            return retryNanos.get();
+        }
+
+        public String toString() {
+            return "calls=" + calls + " attempts=" + attempts + " aborts=" + aborts +
+                " successes=" + successes + " rejections=" + rejections + " timeouts=" + timeouts +
+                " retryMillis=" + (retryNanos.get() / 1000000);
+        }
+    }
+
+    private final long baseMicros;
+    private final long maxMicros;
+    private final ConcurrentHashMap<String,Metrics> metrics = new ConcurrentHashMap<String,Metrics>();
+
+    public TransactionRunner() {
+        this(500, 50000);
+    }
+
+    /**
+     * @param baseMicros һǰȴʱ䣨΢룩
+     * @param maxMicros ÿǰȴʱ䣨΢룩
+     */
+    public TransactionRunner(long baseMicros, long maxMicros) {
+        this.baseMicros = baseMicros;
+        this.maxMicros = maxMicros;
+    }
+
+    /**
+     * ִһֹ
+     *
+     * @param conn
+     * @param name ƣͳ
+     * @param timeoutMillis Եޣһγִܻ
+     * @param operation
+     * @param watchedKeys
+     * @return
+     */
+    public <T> T run(
+        Jedis conn, String name, long timeoutMillis, Operation<T> operation, String... watchedKeys)
+    {
+        Metrics m = getMetrics(name);
+        m.calls.incrementAndGet();
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        long firstAbort = 0;
+        int attempt = 0;
+
+        try {
+            while (true) {
+                m.attempts.incrementAndGet();
+                conn.watch(watchedKeys);
+                if (!operation.read(conn)) {
+                    conn.unwatch();
+                    m.rejections.incrementAndGet();
+                    return operation.rejected();
+                }
+
+                Transaction trans = conn.multi();
+                operation.write(trans);
+                List<Object> results = trans.exec();
+                //EXECؿֵ˵ӵļ˱仯ûִ
+                if (results != null) {
+                    m.successes.incrementAndGet();
+                    return operation.done(results);
+                }
+
+                m.aborts.incrementAndGet();
+                if (firstAbort == 0) {
+                    firstAbort = System.nanoTime();
+                }
+                long ceiling = Math.min(maxMicros, baseMicros << Math.min(attempt++, 20));
+                long pause = ThreadLocalRandom.current().nextLong(ceiling + 1) * 1000;
+                if (System.nanoTime() + pause >= deadline) {
+                    m.timeouts.incrementAndGet();
+                    return operation.timedOut();
+                }
+                LockSupport.parkNanos(pause);
+            }
+        } finally {
+            if (firstAbort != 0) {
+                m.retryNanos.addAndGet(System.nanoTime() - firstAbort);
+            }
+        }
+    }
+
+    public Metrics getMetrics(String name) {
+        Metrics m = metrics.get(name);
+        if (m == null) {
+            Metrics created = new Metrics();
+            m = metrics.putIfAbsent(name, created);
+            if (m == null) {
+                m = created;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * вƵͳݣ
+     */
+    public Map<String,Metrics> getAllMetrics() {
+        return new TreeMap<String,Metrics>(metrics);
+    }
+
+    /**
+     * вֹĴܺ
+     */
+    public long getAborts() {
+        long aborts = 0;
+        for (Metrics m : metrics.values()) {
+            aborts += m.getAborts();
+        }
+        return aborts;
+    }
+}